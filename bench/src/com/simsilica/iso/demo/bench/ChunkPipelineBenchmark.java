@@ -0,0 +1,324 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo.bench;
+
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import com.simsilica.iso.DensityVolume;
+import com.simsilica.iso.fractal.GemsFractalDensityVolume;
+import com.simsilica.iso.mc.MarchingCubesMeshGenerator;
+import com.simsilica.iso.volume.ArrayDensityVolume;
+import com.simsilica.iso.volume.ResamplingVolume;
+import com.simsilica.iso.demo.ChunkSamplingVolume;
+import com.simsilica.iso.demo.DensityBlocks;
+import com.simsilica.iso.demo.InterpolatingDensityVolume;
+import com.simsilica.iso.demo.MeshWelder;
+import com.simsilica.iso.demo.TerrainState;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ *  Times one terrain chunk through the same pipeline that
+ *  TerrainState sets up for its IsoTerrainZoneFactory: fractal
+ *  density sampling into a chunk-sized array volume, marching cubes
+ *  triangulation, and the final vertex buffer creation.
+ *
+ *  <p>Each stage is its own benchmark so that a regression shows up
+ *  against the stage that caused it.  'triangulation' is everything
+ *  MarchingCubesMeshGenerator.buildMesh() does for an already sampled
+ *  volume, which includes creating its buffers.  'bufferBuilding'
+ *  isolates just the cost of creating and filling direct buffers for
+ *  a mesh of the same size so that it can be subtracted out.
+ *  'welding' times welding the duplicate vertices out of the chunk's
+ *  mesh, which TerrainMeshGenerator does after triangulation.</p>
+ *
+ *  <p>The yCell parameter picks the vertical layer of the chunk at
+ *  x=0, z=0, near the default start location.  Layer 0 is mostly
+ *  solid, layer 1 contains the surface, and layer 2 is mostly air.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkPipelineBenchmark {
+
+    @Param({"1", "2"})
+    public float xzScale;
+
+    @Param({"0", "1", "2"})
+    public int yCell;
+
+    private DensityVolume volume;
+    private MarchingCubesMeshGenerator generator;
+    private ArrayDensityVolume samples;
+    private ChunkSamplingVolume chunkVolume;
+    private float[] block;
+    private InterpolatingDensityVolume interpolating;
+    private float[] interpolatedBlock;
+    private Mesh mesh;
+    private MeshWelder welder;
+
+    private int xBase;
+    private int yBase;
+    private int zBase;
+
+    @Setup
+    public void setup() {
+
+        // Same volume setup as TerrainState
+        volume = new GemsFractalDensityVolume();
+        if( xzScale != 1 ) {
+            volume = new ResamplingVolume(new Vector3f(xzScale, 1, xzScale), volume);
+        }
+
+        generator = new MarchingCubesMeshGenerator(TerrainState.CHUNK_SIZE_XZ,
+                                                   TerrainState.CHUNK_SIZE_Y,
+                                                   TerrainState.CHUNK_SIZE_XZ,
+                                                   xzScale);
+
+        // The generator needs a border of samples around the chunk
+        // for its normals so we sample from one cell back.
+        Vector3f size = generator.getRequiredVolumeSize();
+        samples = new ArrayDensityVolume((int)size.x, (int)size.y, (int)size.z);
+        block = new float[(int)size.x * (int)size.y * (int)size.z];
+        chunkVolume = new ChunkSamplingVolume(volume, size,
+                                              new Vector3f(TerrainState.CHUNK_SIZE_XZ,
+                                                           TerrainState.CHUNK_SIZE_Y,
+                                                           TerrainState.CHUNK_SIZE_XZ),
+                                              xzScale);
+        interpolatedBlock = new float[block.length];
+        interpolating = new InterpolatingDensityVolume(volume);
+        xBase = -1;
+        yBase = TerrainState.Y_BASE + yCell * TerrainState.CHUNK_SIZE_Y - 1;
+        zBase = -1;
+
+        // The sample origin is built by hand here rather than by a
+        // real IsoTerrainZone, so make sure it's the origin that the
+        // zone at cell 0, yCell, 0 would extract.  This is the same
+        // rule the chunk sampling front keys zone chunks by in the
+        // game, where extractions that break it are logged as unkeyed.
+        Vector3f zoneLocation = new Vector3f(0, TerrainState.Y_BASE + yCell * TerrainState.CHUNK_SIZE_Y, 0);
+        if( !chunkVolume.isChunkOrigin(zoneLocation, xBase, yBase, zBase) ) {
+            throw new IllegalStateException("Sample origin:" + xBase + ", " + yBase + ", " + zBase
+                                            + " is not a chunk of the zone at:" + zoneLocation);
+        }
+
+        samples.extract(volume, xBase, yBase, zBase);
+        mesh = generator.buildMesh(samples);
+
+        welder = new MeshWelder();
+        if( mesh != null && mesh.getTriangleCount() > 0 ) {
+            Mesh welded = welder.weld(mesh, null);
+            System.out.println("Welded " + mesh.getVertexCount() + " vertices to " + welded.getVertexCount()
+                                + ", " + welded.getTriangleCount() + " of " + mesh.getTriangleCount()
+                                + " triangles kept, index format:"
+                                + welded.getBuffer(VertexBuffer.Type.Index).getFormat());
+        }
+
+        checkInterpolation(size);
+    }
+
+    /**
+     *  Lets the interpolating volume learn its step bound from the
+     *  surrounding chunks and then checks its output for this chunk
+     *  against the fully sampled block.  Every sample within reach of
+     *  the surface must be exact and no sample may change sign.
+     */
+    private void checkInterpolation( Vector3f size ) {
+        int sx = (int)size.x;
+        int sy = (int)size.y;
+        int sz = (int)size.z;
+        for( int i = 0; i < 8; i++ ) {
+            int x = xBase + ((i % 3) - 1) * TerrainState.CHUNK_SIZE_XZ;
+            int z = zBase + ((i / 3) - 1) * TerrainState.CHUNK_SIZE_XZ;
+            interpolating.getDensities(x, yBase, z, sx, sy, sz, interpolatedBlock, 0);
+        }
+        DensityBlocks.fill(volume, xBase, yBase, zBase, sx, sy, sz, block, 0);
+        interpolating.getDensities(xBase, yBase, zBase, sx, sy, sz, interpolatedBlock, 0);
+
+        float maxStep = interpolating.getMaxStep();
+        float maxError = 0;
+        for( int i = 0; i < block.length; i++ ) {
+            float exact = block[i];
+            float approx = interpolatedBlock[i];
+            if( (exact > 0) != (approx > 0) ) {
+                throw new IllegalStateException("Interpolated sample changed sign at:" + i
+                                                + " exact:" + exact + " interpolated:" + approx);
+            }
+            if( Math.abs(exact) <= maxStep * 3 && exact != approx ) {
+                throw new IllegalStateException("Sample near the surface was interpolated at:" + i
+                                                + " exact:" + exact + " interpolated:" + approx);
+            }
+            maxError = Math.max(maxError, Math.abs(exact - approx));
+        }
+        System.out.println("Interpolated " + (int)(interpolating.getInterpolatedRatio() * 100)
+                            + "% of samples, max error:" + maxError + " max step:" + maxStep);
+    }
+
+    /**
+     *  Samples the fractal into the chunk array volume.
+     */
+    @Benchmark
+    public ArrayDensityVolume densitySampling() {
+        samples.extract(volume, xBase, yBase, zBase);
+        return samples;
+    }
+
+    /**
+     *  Samples the fractal into a flat block in one call.
+     */
+    @Benchmark
+    public float[] blockSampling() {
+        Vector3f size = generator.getRequiredVolumeSize();
+        DensityBlocks.fill(volume, xBase, yBase, zBase, (int)size.x, (int)size.y, (int)size.z, block, 0);
+        return block;
+    }
+
+    /**
+     *  Samples the same block as blockSampling but only evaluates the
+     *  fractal near the surface.
+     */
+    @Benchmark
+    public float[] interpolatedSampling() {
+        Vector3f size = generator.getRequiredVolumeSize();
+        interpolating.getDensities(xBase, yBase, zBase, (int)size.x, (int)size.y, (int)size.z,
+                                   interpolatedBlock, 0);
+        return interpolatedBlock;
+    }
+
+    /**
+     *  Samples the chunk array volume through the same chunk sampling
+     *  front that TerrainState uses, including the all air/all solid
+     *  classification.
+     */
+    @Benchmark
+    public ArrayDensityVolume chunkSampling() {
+        // There's no zone being built so the chunk is keyed directly
+        chunkVolume.startChunk(xBase, yBase, zBase);
+        samples.extract(chunkVolume, xBase, yBase, zBase);
+        chunkVolume.endChunk();
+        return samples;
+    }
+
+    /**
+     *  Runs marching cubes over the pre-sampled chunk.
+     */
+    @Benchmark
+    public Mesh triangulation() {
+        return generator.buildMesh(samples);
+    }
+
+    /**
+     *  Creates and fills fresh direct buffers for a mesh the same
+     *  size as the chunk's mesh.
+     */
+    @Benchmark
+    public Mesh bufferBuilding() {
+        if( mesh == null ) {
+            return null;
+        }
+        Mesh result = new Mesh();
+        result.setMode(mesh.getMode());
+        for( VertexBuffer vb : mesh.getBufferList() ) {
+            VertexBuffer copy = new VertexBuffer(vb.getBufferType());
+            copy.setupData(vb.getUsage(), vb.getNumComponents(), vb.getFormat(), copyBuffer(vb.getData()));
+            result.setBuffer(copy);
+        }
+        result.updateBound();
+        return result;
+    }
+
+    /**
+     *  Welds the duplicate vertices out of the chunk's mesh.
+     */
+    @Benchmark
+    public Mesh welding() {
+        return welder.weld(mesh, null);
+    }
+
+    /**
+     *  Sampling and triangulation together, ie: one whole chunk
+     *  build minus the scene graph work.
+     */
+    @Benchmark
+    public Mesh fullChunk() {
+        samples.extract(volume, xBase, yBase, zBase);
+        return generator.buildMesh(samples);
+    }
+
+    private static Buffer copyBuffer( Buffer source ) {
+        source.rewind();
+        if( source instanceof FloatBuffer ) {
+            FloatBuffer result = BufferUtils.createFloatBuffer(source.limit());
+            result.put((FloatBuffer)source);
+            return result;
+        } else if( source instanceof ShortBuffer ) {
+            ShortBuffer result = BufferUtils.createShortBuffer(source.limit());
+            result.put((ShortBuffer)source);
+            return result;
+        } else if( source instanceof IntBuffer ) {
+            IntBuffer result = BufferUtils.createIntBuffer(source.limit());
+            result.put((IntBuffer)source);
+            return result;
+        } else if( source instanceof ByteBuffer ) {
+            ByteBuffer result = BufferUtils.createByteBuffer(source.limit());
+            result.put((ByteBuffer)source);
+            return result;
+        }
+        throw new IllegalArgumentException("Unsupported buffer type:" + source);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.scene.Mesh;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  Thread-safe running totals for the terrain chunks built
+ *  by the background builder threads.
+ */
+public class ChunkBuildStats {
+
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong emptyChunks = new AtomicLong();
+    private final AtomicLong cachedChunks = new AtomicLong();
+    private final AtomicLong skippedChunks = new AtomicLong();
+    private final AtomicLong triangles = new AtomicLong();
+    private final AtomicLong buildNanos = new AtomicLong();
+    private final AtomicLong unweldedVertices = new AtomicLong();
+    private final AtomicLong weldedVertices = new AtomicLong();
+    private volatile long lastBuildTime = System.nanoTime();
+
+    public ChunkBuildStats() {
+    }
+
+    /**
+     *  Called from the builder threads each time a chunk mesh
+     *  has been generated.  The mesh may be null for chunks that
+     *  contain no surface.
+     */
+    public void chunkBuilt( long nanos, Mesh mesh ) {
+        chunks.incrementAndGet();
+        buildNanos.addAndGet(nanos);
+        if( mesh == null || mesh.getTriangleCount() == 0 ) {
+            emptyChunks.incrementAndGet();
+        } else {
+            triangles.addAndGet(mesh.getTriangleCount());
+        }
+        lastBuildTime = System.nanoTime();
+    }
+
+    /**
+     *  Called from the builder threads each time a chunk mesh
+     *  has been loaded from the mesh cache instead of being generated.
+     */
+    public void chunkLoaded( long nanos, Mesh mesh ) {
+        cachedChunks.incrementAndGet();
+        chunkBuilt(nanos, mesh);
+    }
+
+    /**
+     *  Called from the builder threads each time a chunk was found
+     *  to be all air or all solid before running marching cubes.
+     */
+    public void chunkSkipped( long nanos, Mesh mesh ) {
+        skippedChunks.incrementAndGet();
+        chunkBuilt(nanos, mesh);
+    }
+
+    /**
+     *  Called from the builder threads each time a generated chunk
+     *  mesh has had its duplicate vertices welded.
+     */
+    public void chunkWelded( int verticesBefore, int verticesAfter ) {
+        unweldedVertices.addAndGet(verticesBefore);
+        weldedVertices.addAndGet(verticesAfter);
+    }
+
+    public long getChunkCount() {
+        return chunks.get();
+    }
+
+    public long getEmptyChunkCount() {
+        return emptyChunks.get();
+    }
+
+    /**
+     *  Returns the number of chunks, included in the chunk count,
+     *  that were loaded from the mesh cache.
+     */
+    public long getCachedChunkCount() {
+        return cachedChunks.get();
+    }
+
+    /**
+     *  Returns the number of chunks, included in the chunk and
+     *  empty chunk counts, that were classified as all air or all solid
+     *  without running marching cubes.
+     */
+    public long getSkippedChunkCount() {
+        return skippedChunks.get();
+    }
+
+    public long getTriangleCount() {
+        return triangles.get();
+    }
+
+    /**
+     *  Returns how many times fewer vertices the welded chunk meshes
+     *  have than they were generated with, or 0 if none were welded.
+     */
+    public double getWeldRatio() {
+        long welded = weldedVertices.get();
+        return welded == 0 ? 0 : (double)unweldedVertices.get() / welded;
+    }
+
+    public long getBuildNanos() {
+        return buildNanos.get();
+    }
+
+    /**
+     *  Returns the average time spent generating a chunk mesh
+     *  in milliseconds.
+     */
+    public double getAverageBuildMillis() {
+        long count = chunks.get();
+        if( count == 0 ) {
+            return 0;
+        }
+        return (buildNanos.get() / 1000000.0) / count;
+    }
+
+    /**
+     *  Returns the System.nanoTime() of the most recently
+     *  finished chunk.
+     */
+    public long getLastBuildTime() {
+        return lastBuildTime;
+    }
+
+    public void reset() {
+        chunks.set(0);
+        emptyChunks.set(0);
+        cachedChunks.set(0);
+        skippedChunks.set(0);
+        triangles.set(0);
+        buildNanos.set(0);
+        unweldedVertices.set(0);
+        weldedVertices.set(0);
+        lastBuildTime = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkBuildStats[chunks=" + chunks + ", empty=" + emptyChunks
+                + ", cached=" + cachedChunks
+                + ", skipped=" + skippedChunks
+                + ", triangles=" + triangles
+                + ", weldRatio=" + getWeldRatio()
+                + ", avgBuild=" + getAverageBuildMillis() + " ms]";
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  A bounded pool of the density sample grids that the full resolution
+ *  terrain builders have already sampled for their chunks.  Once a chunk
+ *  is built its sample array is handed to the pool instead of being
+ *  thrown away, and the density cache fills its blocks from these grids
+ *  before falling back to sampling the world volume.  Since the chunks
+ *  around the player are always built first, collision near the player
+ *  becomes array copies and lookups.
+ *
+ *  <p>The pool keeps the grids nearest to the center location, which
+ *  TerrainState keeps at the camera.  Evicted arrays are kept for reuse
+ *  by the builders.  All methods are thread safe.</p>
+ */
+public class ChunkGridPool {
+
+    private final int capacity;
+    private final List<Grid> grids = new ArrayList<Grid>();
+    private final List<float[]> free = new ArrayList<float[]>();
+    private volatile float centerX;
+    private volatile float centerZ;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong fills = new AtomicLong();
+
+    /**
+     *  Creates a pool that holds at most 'capacity' chunk grids.
+     */
+    public ChunkGridPool( int capacity ) {
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     *  Sets the world x, z location around which grids are kept.
+     */
+    public void setCenter( float x, float z ) {
+        this.centerX = x;
+        this.centerZ = z;
+    }
+
+    public synchronized int size() {
+        return grids.size();
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     *  Returns the number of requests that were completely filled
+     *  from pooled grids.
+     */
+    public long getFillCount() {
+        return fills.get();
+    }
+
+    /**
+     *  Adds a fully sampled chunk grid to the pool.  The pool takes
+     *  ownership of the array and the caller must not use it again.
+     *  Returns a recycled array of the same length for the caller's next
+     *  chunk or null if there isn't one.
+     */
+    public float[] publish( int x, int y, int z, int sizeX, int sizeY, int sizeZ, float[] data ) {
+        return add(new Grid(x, y, z, sizeX, sizeY, sizeZ, data), data.length);
+    }
+
+    private synchronized float[] add( Grid grid, int length ) {
+        float cx = centerX;
+        float cz = centerZ;
+        grid.updateDistance(cx, cz);
+
+        // Replace any grid for the same chunk
+        for( int i = 0; i < grids.size(); i++ ) {
+            Grid g = grids.get(i);
+            if( g.x == grid.x && g.y == grid.y && g.z == grid.z ) {
+                grids.set(i, grid);
+                recycle(g);
+                published.incrementAndGet();
+                return takeFree(length);
+            }
+        }
+
+        if( grids.size() >= capacity ) {
+            // Make room by dropping the farthest grid if it is farther
+            // than this one
+            int farthest = -1;
+            float max = grid.distance;
+            for( int i = 0; i < grids.size(); i++ ) {
+                Grid g = grids.get(i);
+                g.updateDistance(cx, cz);
+                if( g.distance > max ) {
+                    max = g.distance;
+                    farthest = i;
+                }
+            }
+            if( farthest < 0 ) {
+                // The new grid is the farthest, so the caller keeps its array
+                rejected.incrementAndGet();
+                return grid.data;
+            }
+            recycle(grids.set(farthest, grid));
+        } else {
+            grids.add(grid);
+        }
+        published.incrementAndGet();
+        return takeFree(length);
+    }
+
+    private void recycle( Grid g ) {
+        if( free.size() < 4 ) {
+            free.add(g.data);
+        }
+    }
+
+    private float[] takeFree( int length ) {
+        for( int i = free.size() - 1; i >= 0; i-- ) {
+            if( free.get(i).length == length ) {
+                return free.remove(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     *  Fills the target block of samples from the pooled grids and
+     *  returns true or returns false if any part of the block isn't
+     *  covered, in which case the target contents are undefined.
+     */
+    public synchronized boolean fill( int x, int y, int z, int sizeX, int sizeY, int sizeZ,
+                                      float[] target, int offset ) {
+        if( grids.isEmpty() ) {
+            return false;
+        }
+        Grid last = null;
+        int index = offset;
+        for( int k = 0; k < sizeZ; k++ ) {
+            int zi = z + k;
+            for( int j = 0; j < sizeY; j++ ) {
+                int yi = y + j;
+                int i = 0;
+                while( i < sizeX ) {
+                    int xi = x + i;
+                    if( last == null || !last.contains(xi, yi, zi) ) {
+                        last = find(xi, yi, zi);
+                        if( last == null ) {
+                            return false;
+                        }
+                    }
+                    // Copy as much of the row as this grid covers
+                    int count = Math.min(sizeX - i, last.x + last.sizeX - xi);
+                    last.copyRow(xi, yi, zi, count, target, index);
+                    index += count;
+                    i += count;
+                }
+            }
+        }
+        fills.incrementAndGet();
+        return true;
+    }
+
+    private Grid find( int x, int y, int z ) {
+        for( Grid g : grids ) {
+            if( g.contains(x, y, z) ) {
+                return g;
+            }
+        }
+        return null;
+    }
+
+    private static class Grid {
+        final int x;
+        final int y;
+        final int z;
+        final int sizeX;
+        final int sizeY;
+        final int sizeZ;
+        final float[] data;
+        float distance;
+
+        public Grid( int x, int y, int z, int sizeX, int sizeY, int sizeZ, float[] data ) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            this.sizeZ = sizeZ;
+            this.data = data;
+        }
+
+        public void updateDistance( float cx, float cz ) {
+            float dx = x + sizeX * 0.5f - cx;
+            float dz = z + sizeZ * 0.5f - cz;
+            distance = dx * dx + dz * dz;
+        }
+
+        public boolean contains( int xi, int yi, int zi ) {
+            return xi >= x && yi >= y && zi >= z
+                && xi < x + sizeX && yi < y + sizeY && zi < z + sizeZ;
+        }
+
+        public void copyRow( int xi, int yi, int zi, int count, float[] target, int offset ) {
+            int src = ((zi - z) * sizeY + (yi - y)) * sizeX + (xi - x);
+            System.arraycopy(data, src, target, offset, count);
+        }
+    }
+}
@@ -0,0 +1,498 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.math.Vector3f;
+import com.simsilica.builder.BuilderReference;
+import com.simsilica.iso.DensityVolume;
+import com.simsilica.pager.Zone;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  The density volume that the terrain zone factory samples its
+ *  chunks from.  It lets the rest of the chunk pipeline (the mesh
+ *  generator, the mesh cache) know which chunk is being built without
+ *  having to replace the terrain zones themselves.
+ *
+ *  <p>Chunks are keyed explicitly.  On a ZoneBuilder thread the zone
+ *  being built gives the chunk grid: IsoTerrainZone extracts each
+ *  chunk's samples in one pass starting one sample below the chunk's
+ *  corner, so the chunk's origin is the zone's location in volume
+ *  space plus whole chunk sizes, minus one.  The first sample of an
+ *  extraction has to land on such an origin.  When it doesn't, or
+ *  there is no zone, the chunk is unkeyed: samples pass straight
+ *  through and getCurrentChunk() returns null so nothing is cached or
+ *  skipped.  Code that samples chunks outside of the ZoneBuilder can
+ *  key them itself with startChunk().</p>
+ *
+ *  <p>When the mesh cache already has the chunk then the remaining
+ *  samples are never taken from the real volume.  The mesh generator
+ *  will load the cached mesh instead.</p>
+ *
+ *  <p>Otherwise, the chunk is first classified with a coarse pass over
+ *  its samples.  If every coarse sample has the same sign and is far
+ *  enough from zero that no sample in between could cross it then the
+ *  chunk is all air or all solid and it is treated as uniform: the rest
+ *  of the samples are a constant and the mesh generator skips marching
+ *  cubes.  How far from zero is "far enough" comes from the largest
+ *  change between neighboring samples seen so far in fully sampled
+ *  chunks, times a safety factor.  Classification doesn't start until
+ *  enough chunks have been fully sampled to have a good estimate.</p>
+ *
+ *  <p>When the volume has block sampling of its own (the density
+ *  cache's read-through view, the interpolating volume), chunks that
+ *  need real samples have the whole block filled in one call and the
+ *  individual getDensity() calls made during extraction are served
+ *  from that block.  Otherwise the samples go straight to the volume
+ *  and are only recorded into the block as they pass through, so a
+ *  plain volume pays no more than it would without this front.  Either
+ *  way a complete block is what the step estimate is learned from.</p>
+ *
+ *  <p>With a grid pool set, the filled blocks of finished chunks are
+ *  handed to the pool so that the density cache and the colliders can
+ *  use them instead of sampling the world again.  This only makes sense
+ *  for the full resolution ring where volume space is world space.</p>
+ *
+ *  <p>A chunk isn't sampled at all if its zone has been released
+ *  since its build started.  The ZoneBuilder cancellation is thrown
+ *  out of the first sample instead.</p>
+ *
+ *  <p>Each chunk extraction must be finished with a call to endChunk()
+ *  on the same thread, which TerrainMeshGenerator does after
+ *  building the mesh.  Taking more samples than a chunk's block
+ *  without ending it is an error.</p>
+ */
+public class ChunkSamplingVolume implements DensityVolume {
+
+    static Logger log = LoggerFactory.getLogger(ChunkSamplingVolume.class);
+
+    private final DensityVolume delegate;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final int blockSize;
+    private final int chunkX;
+    private final int chunkY;
+    private final int chunkZ;
+    private final float xzScale;
+    private final AtomicInteger unkeyedChunks = new AtomicInteger();
+    private MeshCache cache;
+    private ChunkGridPool gridPool;
+
+    private boolean skipUniform = true;
+    private int classifyStride = 4;
+    private float safetyFactor = 2;
+    private int minLearnedChunks = 8;
+    private final AtomicInteger learnedChunks = new AtomicInteger();
+    private volatile float maxStep;
+
+    private final ThreadLocal<Chunk> current = new ThreadLocal<Chunk>() {
+            @Override
+            protected Chunk initialValue() {
+                return new Chunk();
+            }
+        };
+
+    /**
+     *  Creates a chunk sampling front for the specified volume where
+     *  each chunk extraction is expected to take blockSize samples in
+     *  x, y, and z.  chunkSize is the chunk size in volume space and
+     *  xzScale the zones' world to volume scale in x and z, the same
+     *  values given to the zone factory and mesh generator.
+     */
+    public ChunkSamplingVolume( DensityVolume delegate, Vector3f blockSize,
+                                Vector3f chunkSize, float xzScale ) {
+        this.delegate = delegate;
+        this.sizeX = (int)blockSize.x;
+        this.sizeY = (int)blockSize.y;
+        this.sizeZ = (int)blockSize.z;
+        this.blockSize = sizeX * sizeY * sizeZ;
+        this.chunkX = (int)chunkSize.x;
+        this.chunkY = (int)chunkSize.y;
+        this.chunkZ = (int)chunkSize.z;
+        this.xzScale = xzScale;
+    }
+
+    public DensityVolume getDelegate() {
+        return delegate;
+    }
+
+    public void setMeshCache( MeshCache cache ) {
+        this.cache = cache;
+    }
+
+    public MeshCache getMeshCache() {
+        return cache;
+    }
+
+    /**
+     *  Sets the pool that the sample blocks of finished chunks are
+     *  handed to.  Defaults to null.
+     */
+    public void setGridPool( ChunkGridPool gridPool ) {
+        this.gridPool = gridPool;
+    }
+
+    public ChunkGridPool getGridPool() {
+        return gridPool;
+    }
+
+    /**
+     *  Sets whether chunks that are all air or all solid are
+     *  detected and skipped.  Defaults to true.
+     */
+    public void setSkipUniform( boolean skipUniform ) {
+        this.skipUniform = skipUniform;
+    }
+
+    public boolean getSkipUniform() {
+        return skipUniform;
+    }
+
+    /**
+     *  Returns the largest density change between neighboring samples
+     *  observed so far.
+     */
+    public float getMaxStep() {
+        return maxStep;
+    }
+
+    /**
+     *  Returns the number of extractions so far whose first sample
+     *  didn't match a chunk of the zone being built.  These are
+     *  sampled straight through and never cached.
+     */
+    public int getUnkeyedCount() {
+        return unkeyedChunks.get();
+    }
+
+    /**
+     *  Returns the keyed chunk currently being sampled on this thread
+     *  or null if there isn't one.
+     */
+    public Chunk getCurrentChunk() {
+        Chunk chunk = current.get();
+        return chunk.active && chunk.keyed ? chunk : null;
+    }
+
+    /**
+     *  Starts the chunk with the specified sample origin on this
+     *  thread for callers that extract chunks outside of a ZoneBuilder
+     *  build.  It must be ended with endChunk() as usual.
+     */
+    public Chunk startChunk( int x, int y, int z ) {
+        Chunk chunk = current.get();
+        if( chunk.active ) {
+            throw new IllegalStateException("Chunk already started on this thread:" + chunk);
+        }
+        startChunk(chunk, x, y, z);
+        return chunk;
+    }
+
+    /**
+     *  Ends the current chunk on this thread.  The next sample taken
+     *  will start a new chunk.
+     */
+    public void endChunk() {
+        Chunk chunk = current.get();
+        if( chunk.active && chunk.recording ) {
+            if( chunk.recorded == blockSize ) {
+                chunk.filled = true;
+                learned(DensityBlocks.maxStep(chunk.block, 0, sizeX, sizeY, sizeZ));
+            }
+            chunk.recording = false;
+        }
+        if( chunk.active && chunk.filled && gridPool != null ) {
+            // The pool takes the block and maybe gives us a used one back
+            chunk.block = gridPool.publish(chunk.x, chunk.y, chunk.z, sizeX, sizeY, sizeZ, chunk.block);
+        }
+        chunk.active = false;
+        chunk.keyed = false;
+        chunk.filled = false;
+    }
+
+    protected Chunk sample( int x, int y, int z ) {
+        Chunk chunk = current.get();
+        if( !chunk.active ) {
+            startZoneChunk(chunk, x, y, z);
+        } else if( chunk.samples >= blockSize ) {
+            throw new IllegalStateException("More than " + blockSize + " samples taken for:" + chunk
+                                            + ", endChunk() not called?");
+        }
+        chunk.samples++;
+        return chunk;
+    }
+
+    /**
+     *  Returns true if an extraction whose first sample is at the
+     *  specified volume location starts one of the chunks of a zone
+     *  at the specified world location.
+     */
+    public boolean isChunkOrigin( Vector3f zoneLocation, int x, int y, int z ) {
+        // The chunk's offset from the zone's corner in volume space,
+        // counting the one sample border below it
+        int i = x + 1 - Math.round(zoneLocation.x / xzScale);
+        int j = y + 1 - Math.round(zoneLocation.y);
+        int k = z + 1 - Math.round(zoneLocation.z / xzScale);
+        return i >= 0 && j >= 0 && k >= 0 && i % chunkX == 0 && j % chunkY == 0 && k % chunkZ == 0;
+    }
+
+    /**
+     *  Starts the chunk whose extraction begins with the specified
+     *  sample, keyed from the zone being built on this thread.
+     */
+    protected void startZoneChunk( Chunk chunk, int x, int y, int z ) {
+        BuilderReference ref = ZoneBuilder.getCurrentReference();
+        if( ref instanceof Zone ) {
+            ((Zone)ref).getWorldLocation(chunk.zoneLocation);
+            if( isChunkOrigin(chunk.zoneLocation, x, y, z) ) {
+                startChunk(chunk, x, y, z);
+                return;
+            }
+        }
+        if( unkeyedChunks.incrementAndGet() == 1 ) {
+            log.warn("Sampling started at:" + x + ", " + y + ", " + z
+                     + " which isn't a chunk of the zone being built:" + ref);
+        }
+        chunk.active = true;
+        chunk.keyed = false;
+        chunk.x = x;
+        chunk.y = y;
+        chunk.z = z;
+        chunk.samples = 0;
+        chunk.cached = false;
+        chunk.uniform = false;
+        chunk.filled = false;
+        chunk.recording = false;
+    }
+
+    protected void startChunk( Chunk chunk, int x, int y, int z ) {
+        if( ZoneBuilder.isBuildCancelled() ) {
+            // Don't sample for a zone that is already gone
+            chunk.active = false;
+            chunk.filled = false;
+            ZoneBuilder.checkCancelled();
+        }
+        chunk.active = true;
+        chunk.keyed = true;
+        chunk.x = x;
+        chunk.y = y;
+        chunk.z = z;
+        chunk.samples = 0;
+        chunk.cached = cache != null && cache.contains(x, y, z);
+        chunk.uniform = false;
+        chunk.filled = false;
+        chunk.recording = false;
+        if( chunk.cached ) {
+            return;
+        }
+        if( skipUniform && learnedChunks.get() >= minLearnedChunks ) {
+            classify(chunk);
+            if( chunk.uniform ) {
+                return;
+            }
+        }
+        if( chunk.block == null ) {
+            chunk.block = new float[blockSize];
+        }
+        if( delegate instanceof BlockDensityVolume ) {
+            fill(chunk);
+        } else {
+            chunk.recording = true;
+            chunk.recorded = 0;
+        }
+    }
+
+    protected void fill( Chunk chunk ) {
+        DensityBlocks.fill(delegate, chunk.x, chunk.y, chunk.z, sizeX, sizeY, sizeZ, chunk.block, 0);
+        chunk.filled = true;
+
+        // A fully sampled chunk, add what we learned
+        learned(DensityBlocks.maxStep(chunk.block, 0, sizeX, sizeY, sizeZ));
+    }
+
+    /**
+     *  Samples the chunk on a coarse lattice that always includes the
+     *  last sample on each axis.  Every sample is then within
+     *  stride/2 samples of a lattice point on each axis and so within
+     *  1.5 * stride steps of it.
+     */
+    protected void classify( Chunk chunk ) {
+        int s = classifyStride;
+        float limit = maxStep * safetyFactor * 1.5f * s;
+        int sign = 0;
+        for( int j = 0; j < sizeY + s - 1; j += s ) {
+            int y = chunk.y + Math.min(j, sizeY - 1);
+            for( int k = 0; k < sizeZ + s - 1; k += s ) {
+                int z = chunk.z + Math.min(k, sizeZ - 1);
+                for( int i = 0; i < sizeX + s - 1; i += s ) {
+                    int x = chunk.x + Math.min(i, sizeX - 1);
+                    float d = delegate.getDensity(x, y, z);
+                    if( Math.abs(d) <= limit ) {
+                        return;
+                    }
+                    int dSign = d > 0 ? 1 : -1;
+                    if( sign == 0 ) {
+                        sign = dSign;
+                    } else if( sign != dSign ) {
+                        return;
+                    }
+                }
+            }
+        }
+        chunk.uniform = true;
+        chunk.uniformValue = sign;
+    }
+
+    private synchronized void learned( float step ) {
+        if( step > maxStep ) {
+            maxStep = step;
+        }
+        learnedChunks.incrementAndGet();
+    }
+
+    @Override
+    public float getDensity( int x, int y, int z ) {
+        Chunk chunk = sample(x, y, z);
+        if( chunk.cached ) {
+            // The mesh will come from the cache so the value doesn't matter
+            return -1;
+        }
+        if( chunk.uniform ) {
+            return chunk.uniformValue;
+        }
+        if( chunk.filled ) {
+            int i = x - chunk.x;
+            int j = y - chunk.y;
+            int k = z - chunk.z;
+            if( i >= 0 && j >= 0 && k >= 0 && i < sizeX && j < sizeY && k < sizeZ ) {
+                return chunk.block[(k * sizeY + j) * sizeX + i];
+            }
+        }
+        float d = delegate.getDensity(x, y, z);
+        if( chunk.recording ) {
+            int i = x - chunk.x;
+            int j = y - chunk.y;
+            int k = z - chunk.z;
+            if( i >= 0 && j >= 0 && k >= 0 && i < sizeX && j < sizeY && k < sizeZ ) {
+                chunk.block[(k * sizeY + j) * sizeX + i] = d;
+                chunk.recorded++;
+            }
+        }
+        return d;
+    }
+
+    @Override
+    public float getDensity( float x, float y, float z ) {
+        Chunk chunk = sample((int)Math.floor(x), (int)Math.floor(y), (int)Math.floor(z));
+        if( chunk.cached ) {
+            return -1;
+        }
+        if( chunk.uniform ) {
+            return chunk.uniformValue;
+        }
+        return delegate.getDensity(x, y, z);
+    }
+
+    @Override
+    public Vector3f getFieldDirection( float x, float y, float z, Vector3f target ) {
+        return delegate.getFieldDirection(x, y, z, target);
+    }
+
+    /**
+     *  The per-thread state for the chunk currently being sampled.
+     */
+    public static class Chunk {
+        private boolean active;
+        private boolean keyed;
+        private final Vector3f zoneLocation = new Vector3f();
+        private boolean cached;
+        private boolean uniform;
+        private float uniformValue;
+        private int x;
+        private int y;
+        private int z;
+        private int samples;
+        private boolean filled;
+        private boolean recording;
+        private int recorded;
+        private float[] block;
+
+        /**
+         *  Returns the x location of the chunk's first sample in
+         *  (possibly resampled) volume space.
+         */
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public int getZ() {
+            return z;
+        }
+
+        /**
+         *  Returns true if the mesh cache already contained this chunk
+         *  at the time sampling started, in which case the samples
+         *  are not real.
+         */
+        public boolean isCached() {
+            return cached;
+        }
+
+        /**
+         *  Returns true if the chunk was classified as all air or
+         *  all solid, in which case it has no surface and the samples
+         *  are a constant.
+         */
+        public boolean isUniform() {
+            return uniform;
+        }
+
+        @Override
+        public String toString() {
+            return "Chunk[" + x + ", " + y + ", " + z + (cached ? ", cached" : "")
+                    + (uniform ? ", uniform" : "") + "]";
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Format;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.util.BufferUtils;
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+
+/**
+ *  Adds skirts to the x and z sides of a terrain chunk mesh.  Every
+ *  triangle edge that lies in one of the chunk's side planes gets a
+ *  quad hanging straight down from it, drawn from both sides and with
+ *  the attributes of the edge's vertices.  Where a chunk meets a chunk
+ *  of a different resolution the two surfaces don't line up exactly
+ *  and the skirts fill the cracks between them.  Between chunks of
+ *  the same resolution the skirts end up hidden under the land.
+ *
+ *  <p>Chunk meshes are expected to span 0 to sizeX along x and 0 to
+ *  sizeZ along z, ie: the chunk size times the xz scale.</p>
+ *
+ *  <p>Keeps a scratch edge list between calls and so must be used
+ *  one per thread.</p>
+ */
+public class ChunkSkirts {
+
+    private static final float EPSILON = 0.001f;
+
+    private final float sizeX;
+    private final float sizeZ;
+    private final float depth;
+    private int[] edges = new int[256];
+    private int edgeCount;
+
+    public ChunkSkirts( float sizeX, float sizeZ, float depth ) {
+        this.sizeX = sizeX;
+        this.sizeZ = sizeZ;
+        this.depth = depth;
+    }
+
+    public float getDepth() {
+        return depth;
+    }
+
+    /**
+     *  Returns a copy of the mesh with skirts added or the original
+     *  mesh if it has no edges on the chunk sides or isn't a triangle
+     *  mesh with all float vertex attributes.  The copy is always
+     *  indexed and its buffers are taken from the allocation, or from
+     *  BufferUtils if the allocation is null.
+     */
+    public Mesh addSkirts( Mesh mesh, DirectBufferPool.Allocation allocation ) {
+        if( mesh == null || mesh.getMode() != Mesh.Mode.Triangles ) {
+            return mesh;
+        }
+        VertexBuffer position = mesh.getBuffer(Type.Position);
+        if( position == null || position.getNumComponents() != 3 ) {
+            return mesh;
+        }
+        VertexBuffer index = mesh.getBuffer(Type.Index);
+        for( VertexBuffer vb : mesh.getBufferList() ) {
+            if( vb != index && !(vb.getData() instanceof FloatBuffer) ) {
+                return mesh;
+            }
+        }
+        FloatBuffer pos = (FloatBuffer)position.getData();
+        int vertexCount = pos.limit() / 3;
+        Buffer oldIndexes = index != null ? index.getData() : null;
+        int indexCount = oldIndexes != null ? oldIndexes.limit() : vertexCount;
+
+        edgeCount = 0;
+        for( int i = 0; i + 2 < indexCount; i += 3 ) {
+            int a = getIndex(oldIndexes, i);
+            int b = getIndex(oldIndexes, i + 1);
+            int c = getIndex(oldIndexes, i + 2);
+            addEdge(pos, a, b);
+            addEdge(pos, b, c);
+            addEdge(pos, c, a);
+        }
+        if( edgeCount == 0 ) {
+            return mesh;
+        }
+
+        // Each edge adds the two vertices below its ends and two
+        // triangles for each side of the quad.
+        int newVertexCount = vertexCount + edgeCount * 2;
+        Mesh result = new Mesh();
+        result.setMode(Mesh.Mode.Triangles);
+        for( VertexBuffer vb : mesh.getBufferList() ) {
+            if( vb == index ) {
+                continue;
+            }
+            FloatBuffer from = (FloatBuffer)vb.getData();
+            int components = vb.getNumComponents();
+            FloatBuffer to = allocation != null ? allocation.createFloatBuffer(newVertexCount * components)
+                                                : BufferUtils.createFloatBuffer(newVertexCount * components);
+            for( int i = 0; i < vertexCount * components; i++ ) {
+                to.put(from.get(i));
+            }
+            boolean isPosition = vb.getBufferType() == Type.Position;
+            for( int e = 0; e < edgeCount; e++ ) {
+                for( int end = 0; end < 2; end++ ) {
+                    int base = edges[e * 2 + end] * components;
+                    for( int j = 0; j < components; j++ ) {
+                        float f = from.get(base + j);
+                        to.put(isPosition && j == 1 ? f - depth : f);
+                    }
+                }
+            }
+            to.flip();
+            VertexBuffer copy = new VertexBuffer(vb.getBufferType());
+            copy.setupData(vb.getUsage(), components, vb.getFormat(), to);
+            copy.setNormalized(vb.isNormalized());
+            result.setBuffer(copy);
+        }
+
+        int size = indexCount + edgeCount * 12;
+        IntBuffer indexes = allocation != null ? allocation.createIntBuffer(size)
+                                               : BufferUtils.createIntBuffer(size);
+        for( int i = 0; i < indexCount; i++ ) {
+            indexes.put(getIndex(oldIndexes, i));
+        }
+        for( int e = 0; e < edgeCount; e++ ) {
+            int a = edges[e * 2];
+            int b = edges[e * 2 + 1];
+            int belowA = vertexCount + e * 2;
+            int belowB = belowA + 1;
+            indexes.put(a).put(b).put(belowB);
+            indexes.put(a).put(belowB).put(belowA);
+            indexes.put(a).put(belowB).put(b);
+            indexes.put(a).put(belowA).put(belowB);
+        }
+        indexes.flip();
+        VertexBuffer ivb = new VertexBuffer(Type.Index);
+        ivb.setupData(index != null ? index.getUsage() : VertexBuffer.Usage.Static, 3,
+                      Format.UnsignedInt, indexes);
+        result.setBuffer(ivb);
+        result.updateBound();
+        result.updateCounts();
+        return result;
+    }
+
+    private void addEdge( FloatBuffer pos, int a, int b ) {
+        float ax = pos.get(a * 3);
+        float az = pos.get(a * 3 + 2);
+        float bx = pos.get(b * 3);
+        float bz = pos.get(b * 3 + 2);
+        if( !onPlane(ax, bx, 0) && !onPlane(ax, bx, sizeX)
+            && !onPlane(az, bz, 0) && !onPlane(az, bz, sizeZ) ) {
+            return;
+        }
+        if( edgeCount * 2 + 2 > edges.length ) {
+            int[] grown = new int[edges.length * 2];
+            System.arraycopy(edges, 0, grown, 0, edgeCount * 2);
+            edges = grown;
+        }
+        edges[edgeCount * 2] = a;
+        edges[edgeCount * 2 + 1] = b;
+        edgeCount++;
+    }
+
+    private static boolean onPlane( float v1, float v2, float plane ) {
+        return Math.abs(v1 - plane) < EPSILON && Math.abs(v2 - plane) < EPSILON;
+    }
+
+    private static int getIndex( Buffer indexes, int i ) {
+        if( indexes == null ) {
+            return i;
+        }
+        if( indexes instanceof IntBuffer ) {
+            return ((IntBuffer)indexes).get(i);
+        }
+        return ((ShortBuffer)indexes).get(i) & 0xffff;
+    }
+}
@@ -67,11 +67,21 @@ public class DebugHudState extends BaseAppState {
     private Label location;
     private Label memory;
     private Label directMem;
+    private Label noiseMem;
+    private Label densityCache;
+    private Label gridPool;
+    private Label bufferPool;
+    private Label frameTimes;
+    private Label zoneRates;
+    private Label buildTimes;
+    private Label collisionTimes;
+    private StringBuilder text = new StringBuilder();
  
     private long lastUsedMem;
     private long lastMeg100;
     private long lastDirectMem;
     private long lastDirectMeg100;
+    private long lastNoiseMem = -1;
     private long nextUpdate = System.currentTimeMillis() + 16; // 60 FPS max
     private long nextMemTime = System.currentTimeMillis() + 1000; 
     
@@ -109,6 +119,30 @@ public class DebugHudState extends BaseAppState {
         
         directMem = debugHud.addChild(new Label( "DMem: 0.0 meg / 0" ));
         directMem.setTextHAlignment( HAlignment.Right );
+        
+        noiseMem = debugHud.addChild(new Label( "Noise: 0.0 meg / 0" ));
+        noiseMem.setTextHAlignment( HAlignment.Right );
+        
+        densityCache = debugHud.addChild(new Label( "Density: 0 % hits / 0 evicted" ));
+        densityCache.setTextHAlignment( HAlignment.Right );
+        
+        gridPool = debugHud.addChild(new Label( "Grids: 0 / 0, 0 copied" ));
+        gridPool.setTextHAlignment( HAlignment.Right );
+        
+        bufferPool = debugHud.addChild(new Label( "Buffers: 0 % hits / 0 meg free" ));
+        bufferPool.setTextHAlignment( HAlignment.Right );
+        
+        frameTimes = debugHud.addChild(new Label( "Frame: 0.0 / 0.0 / 0.0 / 0.0 ms" ));
+        frameTimes.setTextHAlignment( HAlignment.Right );
+        
+        zoneRates = debugHud.addChild(new Label( "Zones/s: 0 queued / 0 built / 0 applied" ));
+        zoneRates.setTextHAlignment( HAlignment.Right );
+        
+        buildTimes = debugHud.addChild(new Label( "" ));
+        buildTimes.setTextHAlignment( HAlignment.Right );
+        
+        collisionTimes = debugHud.addChild(new Label( "Collision: 0.000 / 0.000 ms" ));
+        collisionTimes.setTextHAlignment( HAlignment.Right );
     }
 
     @Override
@@ -186,11 +220,96 @@ public class DebugHudState extends BaseAppState {
             }
         }
  
+        TerrainState terrain = getState(TerrainState.class);
+        NoiseFields noise = terrain != null ? terrain.getNoiseFields() : null;
+        if( noise != null && noise.getEstimatedBytes() != lastNoiseMem ) {
+            lastNoiseMem = noise.getEstimatedBytes();
+            double meg = lastNoiseMem / (1024.0 * 1024.0);
+            String mem = String.format( "Noise: %.2f meg / %d", meg, noise.size() );
+            noiseMem.setText( mem );
+        }
+ 
+        SharedDensityCache cache = terrain != null ? terrain.getDensityCache() : null;
+        if( cache != null ) {
+            String s = String.format( "Density: %.1f %% hits / %d evicted / %.2f meg", 
+                                      cache.getHitRate() * 100, cache.getEvictionCount(),
+                                      cache.getEstimatedBytes() / (1024.0 * 1024.0) );
+            densityCache.setText( s );
+        }
+        
+        ChunkGridPool pool = terrain != null ? terrain.getGridPool() : null;
+        if( pool != null ) {
+            gridPool.setText( "Grids: " + pool.size() + " / " + pool.getCapacity() 
+                              + ", " + pool.getFillCount() + " copied" );
+        }
+
+        DirectBufferPool buffers = terrain != null ? terrain.getBufferPool() : null;
+        if( buffers != null ) {
+            String s = String.format( "Buffers: %.1f %% hits / %.2f meg free / %d freed",
+                                      buffers.getHitRate() * 100,
+                                      buffers.getFreeBytes() / (1024.0 * 1024.0),
+                                      buffers.getDiscardedCount() );
+            bufferPool.setText( s );
+        }
+ 
+        MetricsState metrics = getState(MetricsState.class);
+        if( metrics != null ) {
+            updateMetrics(metrics.getRegistry());
+        }
+ 
         Camera cam = getApplication().getCamera();           
         Vector3f pref = debugHud.getPreferredSize();
         debugHud.setLocalTranslation(cam.getWidth() - pref.x - 10, cam.getHeight() - 10, 0);            
     }
 
+    /**
+     *  Refreshes the metrics labels, formatting into a reused
+     *  StringBuilder.
+     */
+    protected void updateMetrics( MetricsRegistry registry ) {
+        text.setLength(0);
+        text.append("Frame p50/p95/p99/max: ");
+        MetricsRegistry.appendFixed(text, registry.getFrameP50Millis(), 1).append(" / ");
+        MetricsRegistry.appendFixed(text, registry.getFrameP95Millis(), 1).append(" / ");
+        MetricsRegistry.appendFixed(text, registry.getFrameP99Millis(), 1).append(" / ");
+        MetricsRegistry.appendFixed(text, registry.getFrameMaxMillis(), 1).append(" ms");
+        setText(frameTimes, text);
+ 
+        text.setLength(0);
+        text.append("Zones/s: ");
+        MetricsRegistry.appendFixed(text, registry.counter("zones.queued").getRate(), 0).append(" queued / ");
+        MetricsRegistry.appendFixed(text, registry.counter("zones.built").getRate(), 0).append(" built / ");
+        MetricsRegistry.appendFixed(text, registry.counter("zones.applied").getRate(), 0).append(" applied");
+        setText(zoneRates, text);
+ 
+        text.setLength(0);
+        for( MetricsRegistry.Timer timer : registry.getTimers("build.") ) {
+            if( text.length() > 0 ) {
+                text.append('\n');
+            }
+            text.append(timer.getName().substring(6)).append(": ");
+            MetricsRegistry.appendFixed(text, timer.getWindowMeanMillis(), 2).append(" ms build / ");
+            MetricsRegistry.Timer latency = registry.timer("latency." + timer.getName().substring(6));
+            MetricsRegistry.appendFixed(text, latency.getWindowMeanMillis(), 1).append(" ms latency");
+        }
+        setText(buildTimes, text);
+ 
+        text.setLength(0);
+        text.append("Collision walker/projectiles: ");
+        MetricsRegistry.appendFixed(text, registry.timer("collision.walker").getWindowMeanMillis(), 3).append(" / ");
+        MetricsRegistry.appendFixed(text, registry.timer("collision.projectiles").getWindowMeanMillis(), 3).append(" ms");
+        setText(collisionTimes, text);
+    }
+    
+    private void setText( Label label, StringBuilder sb ) {
+        // Only pay for the String when something changed
+        String current = label.getText();
+        if( current != null && current.contentEquals(sb) ) {
+            return;
+        }
+        label.setText(sb.toString());
+    }
+
     @Override
     protected void enable() {
         ((SimpleApplication)getApplication()).getGuiNode().attachChild(debugHud);
@@ -0,0 +1,101 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.simsilica.iso.DensityVolume;
+
+
+/**
+ *  Utility methods for sampling blocks of density values.
+ *
+ *  @see BlockDensityVolume
+ */
+public class DensityBlocks {
+
+    private DensityBlocks() {
+    }
+
+    /**
+     *  Fills the target array with the integer lattice samples of the
+     *  block whose minimum corner is x, y, z, using the volume's own
+     *  block sampling if it has one.
+     */
+    public static void fill( DensityVolume volume, int x, int y, int z,
+                             int sizeX, int sizeY, int sizeZ, float[] target, int offset ) {
+        if( volume instanceof BlockDensityVolume ) {
+            ((BlockDensityVolume)volume).getDensities(x, y, z, sizeX, sizeY, sizeZ, target, offset);
+            return;
+        }
+        int index = offset;
+        for( int k = 0; k < sizeZ; k++ ) {
+            for( int j = 0; j < sizeY; j++ ) {
+                for( int i = 0; i < sizeX; i++ ) {
+                    target[index++] = volume.getDensity(x + i, y + j, z + k);
+                }
+            }
+        }
+    }
+
+    /**
+     *  Returns the largest absolute change between neighboring samples
+     *  along any axis of the block.
+     */
+    public static float maxStep( float[] block, int offset, int sizeX, int sizeY, int sizeZ ) {
+        float max = 0;
+        int xStride = 1;
+        int yStride = sizeX;
+        int zStride = sizeX * sizeY;
+        for( int k = 0; k < sizeZ; k++ ) {
+            for( int j = 0; j < sizeY; j++ ) {
+                int index = offset + k * zStride + j * yStride;
+                for( int i = 0; i < sizeX; i++, index++ ) {
+                    float d = block[index];
+                    if( i + 1 < sizeX ) {
+                        max = Math.max(max, Math.abs(block[index + xStride] - d));
+                    }
+                    if( j + 1 < sizeY ) {
+                        max = Math.max(max, Math.abs(block[index + yStride] - d));
+                    }
+                    if( k + 1 < sizeZ ) {
+                        max = Math.max(max, Math.abs(block[index + zStride] - d));
+                    }
+                }
+            }
+        }
+        return max;
+    }
+}
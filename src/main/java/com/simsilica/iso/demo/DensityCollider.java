@@ -0,0 +1,283 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.math.Vector3f;
+import com.simsilica.iso.DensityVolume;
+import com.simsilica.iso.collision.Collider;
+import com.simsilica.iso.collision.Contact;
+import com.simsilica.iso.collision.SimpleVolumeCollider;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  A sphere vs density field collider that can write its results
+ *  into caller owned objects so that per-frame collision checks
+ *  don't create garbage.
+ *
+ *  <p>The density is treated as an approximate signed distance,
+ *  positive inside the ground.  The contact normal is the negated
+ *  density gradient, from central differences, and the penetration is
+ *  the sphere radius plus the density scaled by the gradient's length.
+ *  This is not the same math as SimpleVolumeCollider, which uses the
+ *  raw density as the distance.  Dividing by the gradient keeps the
+ *  penetration in world units where the field is steeper or shallower
+ *  than one density unit per unit, and the differences are taken from
+ *  the same (usually cached) volume as the density.</p>
+ *
+ *  <p>Spheres whose density is below -(radius + delta) * maxGradient
+ *  are rejected without taking the gradient.  That is exact as long as
+ *  the field is never steeper than maxGradient.  Run with
+ *  -Dcollision.compare=true to check every contact against a
+ *  SimpleVolumeCollider on the same volume.  Disagreements about
+ *  whether there is a contact, or normals more than about 25 degrees
+ *  apart, are counted and the first few logged.</p>
+ *
+ *  <p>The collider keeps no state of its own, so one instance can be
+ *  shared across threads as long as the volume can.</p>
+ */
+public class DensityCollider implements Collider {
+
+    static Logger log = LoggerFactory.getLogger(DensityCollider.class);
+
+    private static final int MAX_LOGGED = 20;
+
+    private final DensityVolume volume;
+    private float delta = 0.5f;
+
+    /**
+     *  The steepest density gradient expected from the volume, used
+     *  to skip the gradient for spheres that can't be touching.
+     */
+    private float maxGradient = 4;
+
+    // Only set when comparing against the library collider
+    private final Collider reference;
+    private final AtomicLong compared = new AtomicLong();
+    private final AtomicLong mismatched = new AtomicLong();
+
+    private int refineIterations = 4;
+
+    public DensityCollider( DensityVolume volume ) {
+        this.volume = volume;
+        if( Boolean.getBoolean("collision.compare") ) {
+            this.reference = new SimpleVolumeCollider(volume);
+        } else {
+            this.reference = null;
+        }
+    }
+
+    public DensityVolume getVolume() {
+        return volume;
+    }
+
+    /**
+     *  Sets the steepest density gradient expected from the volume.
+     *  Spheres further out than that allows are rejected without
+     *  taking the gradient.
+     */
+    public void setMaxGradient( float maxGradient ) {
+        this.maxGradient = maxGradient;
+    }
+
+    public float getMaxGradient() {
+        return maxGradient;
+    }
+
+    /**
+     *  Returns the number of contacts checked against the reference
+     *  collider when running with -Dcollision.compare=true.
+     */
+    public long getComparedCount() {
+        return compared.get();
+    }
+
+    /**
+     *  Returns the number of compared contacts that disagreed with
+     *  the reference collider.
+     */
+    public long getMismatchCount() {
+        return mismatched.get();
+    }
+
+    /**
+     *  Returns a new Contact for the sphere or null if there is no
+     *  contact.  Prefer getContact(loc, radius, result) for anything
+     *  called every frame.
+     */
+    @Override
+    public Contact getContact( Vector3f loc, float radius ) {
+        Contact result = new Contact();
+        if( !getContact(loc, radius, result) ) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     *  Checks the sphere at the specified location and, if it is in
+     *  contact with the ground, fills in the result's contact normal and
+     *  penetration and returns true.  The result is left untouched when
+     *  this returns false.
+     */
+    public boolean getContact( Vector3f loc, float radius, Contact result ) {
+        return getContact(loc.x, loc.y, loc.z, radius, result);
+    }
+
+    /**
+     *  Moves the sphere from 'from' to 'to' in steps of at most half its
+     *  radius and returns true if it touches the ground along the way.
+     *  On contact, 'hit' is set to the earliest location found (refined
+     *  by bisection) and the result holds the contact at that location.
+     *  A sphere already touching the ground at 'from' hits right there
+     *  and it is up to the caller to push it out and keep whatever part
+     *  of the movement doesn't go into the ground.
+     *  Thin features that a single check at 'to' would tunnel through
+     *  are caught this way.  With a caching volume underneath, the
+     *  extra checks mostly hit samples that are already cached.
+     */
+    public boolean sweep( Vector3f from, Vector3f to, float radius, Contact result, Vector3f hit ) {
+        float dx = to.x - from.x;
+        float dy = to.y - from.y;
+        float dz = to.z - from.z;
+        float length = (float)Math.sqrt(dx * dx + dy * dy + dz * dz);
+        int steps = Math.max(1, (int)Math.ceil(length / (radius * 0.5f)));
+
+        // Bisection below assumes the start is clear
+        if( getContact(from.x, from.y, from.z, radius, result) ) {
+            hit.set(from);
+            return true;
+        }
+
+        float free = 0;
+        for( int i = 1; i <= steps; i++ ) {
+            float t = (float)i / steps;
+            if( !getContact(from.x + dx * t, from.y + dy * t, from.z + dz * t, radius, result) ) {
+                free = t;
+                continue;
+            }
+
+            // Narrow down where the contact started
+            float touching = t;
+            for( int j = 0; j < refineIterations; j++ ) {
+                float mid = (free + touching) * 0.5f;
+                if( getContact(from.x + dx * mid, from.y + dy * mid, from.z + dz * mid, radius, result) ) {
+                    touching = mid;
+                } else {
+                    free = mid;
+                }
+            }
+            // The result was last filled in at 'touching' since failed
+            // checks leave it alone
+            hit.set(from.x + dx * touching, from.y + dy * touching, from.z + dz * touching);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean getContact( float x, float y, float z, float radius, Contact result ) {
+        boolean hit = findContact(x, y, z, radius, result);
+        if( reference != null ) {
+            compare(x, y, z, radius, hit ? result : null);
+        }
+        return hit;
+    }
+
+    private boolean findContact( float x, float y, float z, float radius, Contact result ) {
+        float d = volume.getDensity(x, y, z);
+
+        // Quick out for spheres that are clearly in the air
+        if( d < -(radius + delta) * maxGradient ) {
+            return false;
+        }
+
+        float gx = volume.getDensity(x + delta, y, z) - volume.getDensity(x - delta, y, z);
+        float gy = volume.getDensity(x, y + delta, z) - volume.getDensity(x, y - delta, z);
+        float gz = volume.getDensity(x, y, z + delta) - volume.getDensity(x, y, z - delta);
+        float length = (float)Math.sqrt(gx * gx + gy * gy + gz * gz);
+        if( length == 0 ) {
+            return false;
+        }
+        float scale = (2 * delta) / length;
+
+        float penetration = radius + d * scale;
+        if( penetration <= 0 ) {
+            return false;
+        }
+
+        if( result.contactNormal == null ) {
+            result.contactNormal = new Vector3f();
+        }
+        // Away from the ground is toward lower density
+        result.contactNormal.set(-gx / length, -gy / length, -gz / length);
+        result.penetration = penetration;
+        return true;
+    }
+
+    /**
+     *  Checks a contact against the reference collider.  Only used
+     *  when comparing so the allocation here doesn't matter.
+     */
+    private void compare( float x, float y, float z, float radius, Contact contact ) {
+        compared.incrementAndGet();
+        Contact expected = reference.getContact(new Vector3f(x, y, z), radius);
+        boolean match;
+        if( expected == null || contact == null ) {
+            match = expected == contact;
+        } else {
+            match = expected.contactNormal.dot(contact.contactNormal) > 0.9f;
+        }
+        if( match ) {
+            return;
+        }
+        long count = mismatched.incrementAndGet();
+        if( count <= MAX_LOGGED ) {
+            log.warn("Contact mismatch at:" + x + ", " + y + ", " + z + " radius:" + radius
+                     + " expected:" + describe(expected) + " got:" + describe(contact)
+                     + "  (" + count + " of " + compared.get() + ")");
+        }
+    }
+
+    private static String describe( Contact c ) {
+        if( c == null ) {
+            return "none";
+        }
+        return c.contactNormal + " pen:" + c.penetration;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.scene.Mesh;
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+
+/**
+ *  A pool of direct buffers for generated meshes, kept in power of two
+ *  size classes.  Buffers are handed out as exactly sized typed slices
+ *  of a pooled block through an Allocation that is then registered
+ *  with the mesh that uses them.  When the mesh is recycled, all of
+ *  its blocks go back to the pool.
+ *
+ *  <p>Only the blocks of registered meshes are ever recycled, so meshes
+ *  built some other way, including shared template meshes, are never
+ *  touched.  Meshes that are dropped without being recycled are
+ *  simply garbage collected along with their blocks.</p>
+ *
+ *  <p>The pool holds at most maxBytes of free blocks.  Blocks returned
+ *  beyond that, and requests larger than the largest size class, are
+ *  freed right away instead of waiting for the garbage collector.</p>
+ *
+ *  <p>All methods are safe to call from multiple threads.</p>
+ */
+public class DirectBufferPool {
+
+    private static final int MIN_SHIFT = 12;  // 4k
+    private static final int MAX_SHIFT = 24;  // 16 meg
+
+    private final ArrayDeque<ByteBuffer>[] free;
+    private final Map<Mesh, Allocation> meshes = new WeakHashMap<Mesh, Allocation>();
+    private long maxBytes;
+    private long freeBytes;
+    private long hits;
+    private long misses;
+    private long recycled;
+    private long discarded;
+
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool( long maxBytes ) {
+        this.maxBytes = maxBytes;
+        this.free = new ArrayDeque[MAX_SHIFT - MIN_SHIFT + 1];
+        for( int i = 0; i < free.length; i++ ) {
+            free[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    /**
+     *  Sets the most bytes of free blocks that the pool will hold.
+     *  Lowering it frees the extra blocks.
+     */
+    public synchronized void setMaxBytes( long maxBytes ) {
+        this.maxBytes = maxBytes;
+        for( int i = free.length - 1; i >= 0 && freeBytes > maxBytes; i-- ) {
+            while( freeBytes > maxBytes && !free[i].isEmpty() ) {
+                ByteBuffer block = free[i].poll();
+                freeBytes -= block.capacity();
+                discarded++;
+                BufferUtils.destroyDirectBuffer(block);
+            }
+        }
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     *  Returns the number of bytes held in free blocks.
+     */
+    public synchronized long getFreeBytes() {
+        return freeBytes;
+    }
+
+    /**
+     *  Returns the number of requests served from a free block.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     *  Returns the number of requests that needed a new block.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    /**
+     *  Returns the number of blocks returned to the pool.
+     */
+    public synchronized long getRecycledCount() {
+        return recycled;
+    }
+
+    /**
+     *  Returns the number of blocks freed because the pool was full
+     *  or they were too big to pool.
+     */
+    public synchronized long getDiscardedCount() {
+        return discarded;
+    }
+
+    /**
+     *  Creates a new allocation to take a mesh's buffers from.
+     */
+    public Allocation createAllocation() {
+        return new Allocation();
+    }
+
+    /**
+     *  Registers the mesh whose buffers came from the specified
+     *  allocation so that they can be recycled with it.
+     */
+    public synchronized void register( Mesh mesh, Allocation allocation ) {
+        if( mesh == null ) {
+            allocation.release();
+            return;
+        }
+        meshes.put(mesh, allocation);
+    }
+
+    /**
+     *  Returns the buffers of a registered mesh to the pool.  The mesh
+     *  must no longer be used or rendered.  Meshes that weren't
+     *  registered are left alone.  Returns true if the mesh was
+     *  recycled.
+     */
+    public boolean recycle( Mesh mesh ) {
+        Allocation allocation;
+        synchronized( this ) {
+            allocation = meshes.remove(mesh);
+        }
+        if( allocation == null ) {
+            return false;
+        }
+        allocation.release();
+        return true;
+    }
+
+    private static int sizeClass( int bytes ) {
+        int shift = MIN_SHIFT;
+        while( (1 << shift) < bytes ) {
+            shift++;
+        }
+        return shift - MIN_SHIFT;
+    }
+
+    protected synchronized ByteBuffer acquire( int bytes ) {
+        int index = sizeClass(bytes);
+        if( index < free.length ) {
+            ByteBuffer block = free[index].poll();
+            if( block != null ) {
+                freeBytes -= block.capacity();
+                hits++;
+                block.clear();
+                return block;
+            }
+        }
+        misses++;
+        int size = index < free.length ? 1 << (index + MIN_SHIFT) : bytes;
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    protected synchronized void release( ByteBuffer block ) {
+        int index = sizeClass(block.capacity());
+        if( index >= free.length || freeBytes + block.capacity() > maxBytes ) {
+            discarded++;
+            BufferUtils.destroyDirectBuffer(block);
+            return;
+        }
+        recycled++;
+        freeBytes += block.capacity();
+        free[index].push(block);
+    }
+
+    /**
+     *  The pooled blocks behind the buffers of one mesh.  An allocation
+     *  is used by one thread at a time until it is registered.
+     */
+    public class Allocation {
+        private final List<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+
+        private ByteBuffer slice( int bytes ) {
+            ByteBuffer block = acquire(bytes);
+            blocks.add(block);
+            block.limit(bytes);
+            return block.slice().order(ByteOrder.nativeOrder());
+        }
+
+        public FloatBuffer createFloatBuffer( int size ) {
+            return slice(size * 4).asFloatBuffer();
+        }
+
+        public IntBuffer createIntBuffer( int size ) {
+            return slice(size * 4).asIntBuffer();
+        }
+
+        public ShortBuffer createShortBuffer( int size ) {
+            return slice(size * 2).asShortBuffer();
+        }
+
+        public ByteBuffer createByteBuffer( int size ) {
+            return slice(size);
+        }
+
+        /**
+         *  Returns all of this allocation's blocks to the pool.
+         *  Anything created from it must no longer be used.
+         */
+        public void release() {
+            for( ByteBuffer block : blocks ) {
+                DirectBufferPool.this.release(block);
+            }
+            blocks.clear();
+        }
+    }
+}
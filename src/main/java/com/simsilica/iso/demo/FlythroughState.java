@@ -0,0 +1,413 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.app.Application;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.simsilica.lemur.GuiGlobals;
+import com.simsilica.lemur.event.BaseAppState;
+import com.simsilica.lemur.input.InputMapper;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  A benchmark that flies the camera along a fixed path at a set
+ *  of fixed speeds while recording per-frame timings and builder
+ *  activity.  When enabled, it installs itself as the MovementState's
+ *  movement handler so that user input no longer moves the camera and
+ *  then drives the land movement handler directly.  Each speed is run
+ *  from the start of the path after the builder has gone idle.
+ *
+ *  <p>For every speed the following are recorded into HDR-style
+ *  percentile histograms and written to a flythrough-*.hgrm file:
+ *  frame time, builder apply time, builder queue depth, zones applied
+ *  per frame, and the paging catch-up distance.  The catch-up distance
+ *  is how far the camera traveled from crossing into a new chunk until
+ *  the builder had nothing left to do.</p>
+ *
+ *  <p>By default the path is a straight line from the current location
+ *  along the current facing.  A recorded path can be loaded with
+ *  loadPath() or the flythrough.path system property.  The file
+ *  contains one "x y z" waypoint per line, # starts a comment.</p>
+ */
+public class FlythroughState extends BaseAppState implements MovementHandler {
+
+    static Logger log = LoggerFactory.getLogger(FlythroughState.class);
+
+    private static final long SETTLE_NANOS = 1000 * 1000000L;
+
+    // Walk speed plus the F_RUN and F_SUPER_RUN speeds from MovementState
+    private float[] speeds = new float[] { 3, 10, 20 };
+    private float pathLength = 1024;
+    private List<Vector3f> path;
+    private File outputDir = new File(".");
+
+    private MovementHandler delegate;
+    private ZoneBuilderState builderState;
+    private List<Vector3f> activePath;
+    private PrintWriter out;
+    private File outFile;
+
+    private int run;
+    private boolean settling;
+    private long settleStart;
+    private long lastFrame;
+    private int segment;
+    private float traveled;
+    private float catchupStart;
+    private long cancelledStart;
+    private int lastCellX;
+    private int lastCellZ;
+    private Vector3f position = new Vector3f();
+    private Vector3f step = new Vector3f();
+    private Quaternion facing = new Quaternion();
+
+    private FrameHistogram frameTimes = new FrameHistogram("Frame time (ms)");
+    private FrameHistogram applyTimes = new FrameHistogram("Builder apply time (ms)");
+    private FrameHistogram queueDepths = new FrameHistogram("Builder queue depth");
+    private FrameHistogram zonesApplied = new FrameHistogram("Zones applied per frame");
+    private FrameHistogram catchup = new FrameHistogram("Paging catch-up distance (units)");
+
+    public FlythroughState() {
+        setEnabled(false);
+    }
+
+    public void toggleEnabled() {
+        setEnabled(!isEnabled());
+    }
+
+    public void setSpeeds( float... speeds ) {
+        this.speeds = speeds;
+    }
+
+    public float[] getSpeeds() {
+        return speeds;
+    }
+
+    /**
+     *  Sets the length of the default straight line path.
+     */
+    public void setPathLength( float f ) {
+        this.pathLength = f;
+    }
+
+    public float getPathLength() {
+        return pathLength;
+    }
+
+    /**
+     *  Sets an explicit path to fly.  If null, or if it has fewer than
+     *  two waypoints, then a straight line is flown from the current
+     *  location.
+     */
+    public void setPath( List<Vector3f> path ) {
+        this.path = path;
+    }
+
+    public List<Vector3f> getPath() {
+        return path;
+    }
+
+    public void setOutputDirectory( File dir ) {
+        this.outputDir = dir;
+    }
+
+    public File getOutputDirectory() {
+        return outputDir;
+    }
+
+    /**
+     *  Loads a recorded path of "x y z" lines.
+     */
+    public static List<Vector3f> loadPath( File file ) throws IOException {
+        List<Vector3f> result = new ArrayList<Vector3f>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while( (line = in.readLine()) != null ) {
+                line = line.trim();
+                if( line.length() == 0 || line.startsWith("#") ) {
+                    continue;
+                }
+                String[] parts = line.split("[\\s,]+");
+                result.add(new Vector3f(Float.parseFloat(parts[0]),
+                                        Float.parseFloat(parts[1]),
+                                        Float.parseFloat(parts[2])));
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    @Override
+    public void setLocation( Vector3f loc ) {
+        // User movement is ignored while the benchmark runs
+    }
+
+    @Override
+    public Vector3f getLocation() {
+        return position;
+    }
+
+    @Override
+    public void setFacing( Quaternion facing ) {
+        // The benchmark always looks along the path
+    }
+
+    @Override
+    public Quaternion getFacing() {
+        return delegate.getFacing();
+    }
+
+    @Override
+    protected void initialize( Application app ) {
+        InputMapper inputMapper = GuiGlobals.getInstance().getInputMapper();
+        inputMapper.addDelegate(MainFunctions.F_FLYTHROUGH, this, "toggleEnabled");
+
+        String pathFile = System.getProperty("flythrough.path");
+        if( path == null && pathFile != null ) {
+            try {
+                path = loadPath(new File(pathFile));
+            } catch( IOException e ) {
+                log.error("Error loading flythrough path:" + pathFile, e);
+            }
+        }
+    }
+
+    @Override
+    protected void cleanup( Application app ) {
+        InputMapper inputMapper = GuiGlobals.getInstance().getInputMapper();
+        inputMapper.removeDelegate(MainFunctions.F_FLYTHROUGH, this, "toggleEnabled");
+    }
+
+    @Override
+    protected void enable() {
+        builderState = getState(ZoneBuilderState.class);
+
+        // Walking would fight with us over the location
+        WalkingMovementHandler walker = getState(WalkingMovementHandler.class);
+        if( walker != null && walker.isEnabled() ) {
+            walker.setEnabled(false);
+        }
+
+        MovementState movementState = getState(MovementState.class);
+        delegate = movementState.getMovementHandler();
+
+        activePath = path;
+        if( activePath != null && activePath.size() < 2 ) {
+            log.error("Flythrough path needs at least two waypoints but has " + activePath.size()
+                      + ", flying the default straight line instead");
+            activePath = null;
+        }
+        if( activePath == null ) {
+            Vector3f start = delegate.getLocation().clone();
+            Vector3f dir = delegate.getFacing().mult(Vector3f.UNIT_Z);
+            dir.y = 0;
+            if( dir.lengthSquared() == 0 ) {
+                dir.set(0, 0, 1);
+            }
+            dir.normalizeLocal();
+            activePath = new ArrayList<Vector3f>();
+            activePath.add(start);
+            activePath.add(start.add(dir.mult(pathLength)));
+        }
+
+        outFile = new File(outputDir, "flythrough-" + System.currentTimeMillis() + ".hgrm");
+        try {
+            out = new PrintWriter(new FileWriter(outFile));
+        } catch( IOException e ) {
+            log.error("Error opening benchmark output:" + outFile, e);
+            setEnabled(false);
+            return;
+        }
+        log.info("Starting flythrough benchmark, writing:" + outFile);
+
+        movementState.setMovementHandler(this);
+        run = 0;
+        startRun();
+    }
+
+    @Override
+    protected void disable() {
+        if( delegate != null ) {
+            getState(MovementState.class).setMovementHandler(delegate);
+        }
+        if( out != null ) {
+            if( run < speeds.length ) {
+                out.println("# Aborted during run at speed " + speeds[run]);
+            }
+            out.close();
+            out = null;
+        }
+    }
+
+    protected void startRun() {
+        segment = 0;
+        traveled = 0;
+        catchupStart = -1;
+        position.set(activePath.get(0));
+        delegate.setLocation(position);
+        lastCellX = cell(position.x);
+        lastCellZ = cell(position.z);
+        lookAlong(activePath.get(1).subtract(activePath.get(0)));
+
+        frameTimes.reset();
+        applyTimes.reset();
+        queueDepths.reset();
+        zonesApplied.reset();
+        catchup.reset();
+
+        // Let the builder finish paging in the start location
+        // before measuring anything.
+        settling = true;
+        settleStart = System.nanoTime();
+    }
+
+    protected void finishRun() {
+        float speed = speeds[run];
+        long cancelled = builderState.getBuilder().getCancelledCount() - cancelledStart;
+        out.println("# Flythrough at " + speed + " units/sec, distance:" + traveled
+                    + ", frames:" + frameTimes.getTotalCount() + ", cancelled builds:" + cancelled);
+        writeHistogram(frameTimes, 1000);
+        writeHistogram(applyTimes, 1000);
+        writeHistogram(queueDepths, 1);
+        writeHistogram(zonesApplied, 1);
+        writeHistogram(catchup, 100);
+        out.flush();
+
+        log.info(String.format("Speed %.1f: p99 frame %.3f ms, max frame %.3f ms, p99 catch-up %.2f units, max catch-up %.2f units, %d cancelled",
+                               speed, frameTimes.getValueAtPercentile(99) / 1000.0,
+                               frameTimes.getMax() / 1000.0,
+                               catchup.getValueAtPercentile(99) / 100.0,
+                               catchup.getMax() / 100.0, cancelled));
+
+        run++;
+        if( run < speeds.length ) {
+            startRun();
+        } else {
+            log.info("Flythrough benchmark complete:" + outFile);
+            setEnabled(false);
+        }
+    }
+
+    private void writeHistogram( FrameHistogram histogram, double scale ) {
+        out.println("# " + histogram.getName());
+        histogram.outputPercentileDistribution(out, scale);
+        out.println();
+    }
+
+    private int cell( float f ) {
+        return (int)Math.floor(f / TerrainState.CHUNK_SIZE_XZ);
+    }
+
+    private void lookAlong( Vector3f dir ) {
+        facing.lookAt(dir, Vector3f.UNIT_Y);
+        delegate.setFacing(facing);
+    }
+
+    @Override
+    public void update( float tpf ) {
+        ZoneBuilder builder = builderState.getBuilder();
+        long time = System.nanoTime();
+
+        if( settling ) {
+            if( builder.isQuiescent() && time - settleStart > SETTLE_NANOS ) {
+                settling = false;
+                lastFrame = time;
+                cancelledStart = builder.getCancelledCount();
+            }
+            return;
+        }
+
+        frameTimes.recordValue((time - lastFrame) / 1000);
+        lastFrame = time;
+        applyTimes.recordValue(builderState.getLastApplyNanos() / 1000);
+        queueDepths.recordValue(builder.getQueueDepth());
+        zonesApplied.recordValue(builder.getLastFrameApplied());
+
+        // Move along the path
+        float remaining = speeds[run] * tpf;
+        while( remaining > 0 && segment < activePath.size() - 1 ) {
+            Vector3f target = activePath.get(segment + 1);
+            step.set(target).subtractLocal(position);
+            float distance = step.length();
+            if( distance <= remaining ) {
+                position.set(target);
+                traveled += distance;
+                remaining -= distance;
+                segment++;
+                if( segment < activePath.size() - 1 ) {
+                    lookAlong(activePath.get(segment + 1).subtract(target));
+                }
+            } else {
+                position.addLocal(step.multLocal(remaining / distance));
+                traveled += remaining;
+                remaining = 0;
+            }
+        }
+        delegate.setLocation(position);
+
+        // Track how far we get after crossing a chunk boundary
+        // before the builder catches up.
+        int x = cell(position.x);
+        int z = cell(position.z);
+        if( (x != lastCellX || z != lastCellZ) && catchupStart < 0 ) {
+            catchupStart = traveled;
+        }
+        lastCellX = x;
+        lastCellZ = z;
+        if( catchupStart >= 0 && builder.isQuiescent() ) {
+            catchup.recordValue((long)((traveled - catchupStart) * 100));
+            catchupStart = -1;
+        }
+
+        if( segment >= activePath.size() - 1 ) {
+            finishRun();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+
+/**
+ *  A fixed-size log-linear histogram of positive long values in the
+ *  spirit of HdrHistogram.  Values below 256 are tracked exactly and
+ *  larger values keep roughly three significant digits (128 linear
+ *  sub-buckets per power of two), which is plenty for frame times
+ *  in microseconds.  Recording never allocates.
+ *
+ *  <p>This class is not thread-safe.</p>
+ */
+public class FrameHistogram {
+
+    private static final int LINEAR = 256;
+    private static final int SUB_BUCKETS = 128;
+    private static final int SUB_BITS = 7;
+    private static final int MAX_SHIFT = 40;
+
+    private final String name;
+    private final long[] counts = new long[LINEAR + MAX_SHIFT * SUB_BUCKETS];
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double total;
+
+    public FrameHistogram( String name ) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void recordValue( long value ) {
+        if( value < 0 ) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        totalCount++;
+        total += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : total / totalCount;
+    }
+
+    public double getStdDeviation() {
+        if( totalCount == 0 ) {
+            return 0;
+        }
+        double mean = getMean();
+        double sum = 0;
+        for( int i = 0; i < counts.length; i++ ) {
+            if( counts[i] == 0 ) {
+                continue;
+            }
+            double dev = valueOf(i) - mean;
+            sum += dev * dev * counts[i];
+        }
+        return Math.sqrt(sum / totalCount);
+    }
+
+    /**
+     *  Returns the highest value equivalent to the value at the
+     *  specified percentile, 0 to 100.
+     */
+    public long getValueAtPercentile( double percentile ) {
+        if( totalCount == 0 ) {
+            return 0;
+        }
+        double p = Math.min(100, Math.max(0, percentile));
+        long target = Math.max(1, (long)Math.ceil((p / 100.0) * totalCount));
+        long running = 0;
+        for( int i = 0; i < counts.length; i++ ) {
+            running += counts[i];
+            if( running >= target ) {
+                return Math.min(max, valueOf(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     *  Writes the percentile distribution in the same text layout
+     *  that HdrHistogram uses so that the existing plotting tools
+     *  can read it.  Values are divided by 'scale' on output.
+     */
+    public void outputPercentileDistribution( PrintWriter out, double scale ) {
+        out.println(String.format("%12s %14s %10s %14s", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+        out.println();
+        if( totalCount > 0 ) {
+            // Five ticks per halving of the remaining distance,
+            // like HdrHistogram's default.
+            double lastPercentile = -1;
+            for( int half = 0; half < 64; half++ ) {
+                double base = 1.0 - Math.pow(0.5, half);
+                double next = 1.0 - Math.pow(0.5, half + 1);
+                for( int tick = 0; tick < 5; tick++ ) {
+                    double fraction = base + (next - base) * tick / 5.0;
+                    if( fraction * totalCount > totalCount - 1 ) {
+                        half = 64;
+                        break;
+                    }
+                    printLine(out, fraction, scale);
+                    lastPercentile = fraction;
+                }
+            }
+            if( lastPercentile < 1.0 ) {
+                printLine(out, 1.0, scale);
+            }
+        }
+        out.println(String.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]",
+                                  getMean() / scale, getStdDeviation() / scale));
+        out.println(String.format("#[Max     = %12.3f, Total count    = %12d]",
+                                  getMax() / scale, totalCount));
+        out.println(String.format("#[Buckets = %12d, SubBuckets     = %12d]",
+                                  MAX_SHIFT, SUB_BUCKETS));
+    }
+
+    private void printLine( PrintWriter out, double fraction, double scale ) {
+        long value = getValueAtPercentile(fraction * 100);
+        long count = Math.max(1, (long)Math.ceil(fraction * totalCount));
+        if( fraction < 1.0 ) {
+            out.println(String.format("%12.3f %2.12f %10d %14.2f", value / scale, fraction, count, 1 / (1 - fraction)));
+        } else {
+            out.println(String.format("%12.3f %2.12f %10d", value / scale, fraction, count));
+        }
+    }
+
+    private static int indexOf( long value ) {
+        if( value < LINEAR ) {
+            return (int)value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BITS;
+        if( shift > MAX_SHIFT ) {
+            // Clamp absurdly large values into the last bucket
+            return LINEAR + MAX_SHIFT * SUB_BUCKETS - 1;
+        }
+        int sub = (int)(value >> shift) - SUB_BUCKETS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     *  Returns the highest value that maps to the specified
+     *  bucket index.
+     */
+    private static long valueOf( int index ) {
+        if( index < LINEAR ) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        int sub = (index - LINEAR) % SUB_BUCKETS;
+        long low = (long)(sub + SUB_BUCKETS) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[count=" + totalCount + ", mean=" + getMean()
+                    + ", p99=" + getValueAtPercentile(99) + ", max=" + max + "]";
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.app.SimpleApplication;
+import com.jme3.math.Vector3f;
+import com.jme3.system.AppSettings;
+import com.jme3.system.JmeContext;
+import com.jme3.util.MemoryUtils;
+import com.simsilica.lemur.GuiGlobals;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  Runs the terrain generation without a display or GPU.  The
+ *  builder, the terrain and its paged children (grass, trees) are
+ *  all set up exactly as in the regular demo but with a null renderer.
+ *  The land is then paged either over a rectangular region of chunks
+ *  or along a camera path and the throughput is reported at the end.
+ *
+ *  <p>Command line options:</p>
+ *  <pre>
+ *  --region minX,minZ,maxX,maxZ   page every chunk center in the region
+ *  --path x,z;x,z;...             move along the path at --speed
+ *  --speed unitsPerSecond         path speed, default 10
+ *  --height y                     camera elevation, default 20
+ *  --settle ms                    idle time that counts as 'done', default 1000
+ *  --fps n                        update rate, default 60
+ *  --threads n                    fixed builder pool size, default is adaptive
+ *  --zone-events file             record zone events and write them to file
+ *  </pre>
+ *
+ *  <p>If neither a region nor a path is given then a 3x3 chunk
+ *  region around the origin is paged.</p>
+ */
+public class HeadlessMain extends SimpleApplication {
+
+    static Logger log = LoggerFactory.getLogger(HeadlessMain.class);
+
+    private List<Vector3f> waypoints = new ArrayList<Vector3f>();
+    private boolean followPath;
+    private float speed = 10;
+    private float height = 20;
+    private long settleNanos = 1000 * 1000000L;
+
+    private MovementHandler mover;
+    private ChunkBuildStats stats;
+    private int nextWaypoint;
+    private Vector3f position = new Vector3f();
+    private Vector3f target = new Vector3f();
+    private long stepStart;
+    private long startTime;
+    private long busyNanos;
+    private long peakDirect;
+    private File zoneEvents;
+
+    public static void main( String... args ) {
+
+        int fps = 60;
+        int threads = 0;
+        List<Vector3f> points = new ArrayList<Vector3f>();
+        boolean path = false;
+        float speed = 10;
+        float height = 20;
+        long settle = 1000;
+        File zoneEvents = null;
+
+        for( int i = 0; i < args.length; i++ ) {
+            String arg = args[i];
+            if( "--region".equals(arg) ) {
+                float[] r = parseFloats(args[++i], ",", 4);
+                points = regionPoints(r[0], r[1], r[2], r[3]);
+                path = false;
+            } else if( "--path".equals(arg) ) {
+                points = new ArrayList<Vector3f>();
+                for( String p : args[++i].split(";") ) {
+                    float[] xz = parseFloats(p, ",", 2);
+                    points.add(new Vector3f(xz[0], 0, xz[1]));
+                }
+                path = true;
+            } else if( "--speed".equals(arg) ) {
+                speed = Float.parseFloat(args[++i]);
+            } else if( "--height".equals(arg) ) {
+                height = Float.parseFloat(args[++i]);
+            } else if( "--settle".equals(arg) ) {
+                settle = Long.parseLong(args[++i]);
+            } else if( "--fps".equals(arg) ) {
+                fps = Integer.parseInt(args[++i]);
+            } else if( "--threads".equals(arg) ) {
+                threads = Integer.parseInt(args[++i]);
+            } else if( "--zone-events".equals(arg) ) {
+                zoneEvents = new File(args[++i]);
+            } else {
+                throw new IllegalArgumentException("Unknown option:" + arg);
+            }
+        }
+
+        if( points.isEmpty() ) {
+            int size = TerrainState.CHUNK_SIZE_XZ;
+            points = regionPoints(-size, -size, size, size);
+        }
+
+        HeadlessMain main = new HeadlessMain(threads);
+        main.waypoints = points;
+        main.followPath = path;
+        main.speed = speed;
+        main.height = height;
+        main.settleNanos = settle * 1000000L;
+        main.zoneEvents = zoneEvents;
+        if( zoneEvents != null ) {
+            ZoneEvents.setEnabled(true);
+        }
+
+        AppSettings settings = new AppSettings(true);
+        settings.setFrameRate(fps);
+        settings.setAudioRenderer(null);
+        main.setSettings(settings);
+        main.setShowSettings(false);
+        main.setPauseOnLostFocus(false);
+
+        main.start(JmeContext.Type.Headless);
+    }
+
+    public HeadlessMain( int builderThreads ) {
+        super(new TerrainState(),
+              builderThreads > 0 ? new ZoneBuilderState(builderThreads, 16) : new ZoneBuilderState(16));
+    }
+
+    private static float[] parseFloats( String s, String separator, int count ) {
+        String[] parts = s.split(separator);
+        if( parts.length != count ) {
+            throw new IllegalArgumentException("Expected " + count + " values in:" + s);
+        }
+        float[] result = new float[count];
+        for( int i = 0; i < count; i++ ) {
+            result[i] = Float.parseFloat(parts[i].trim());
+        }
+        return result;
+    }
+
+    /**
+     *  Returns the centers of all root chunks in the specified
+     *  region in a back and forth order so that each step only
+     *  pages in one new row or column of zones.
+     */
+    private static List<Vector3f> regionPoints( float minX, float minZ, float maxX, float maxZ ) {
+        int size = TerrainState.CHUNK_SIZE_XZ;
+        int xStart = (int)Math.floor(minX / size);
+        int xEnd = (int)Math.floor(maxX / size);
+        int zStart = (int)Math.floor(minZ / size);
+        int zEnd = (int)Math.floor(maxZ / size);
+
+        List<Vector3f> result = new ArrayList<Vector3f>();
+        boolean forward = true;
+        for( int z = zStart; z <= zEnd; z++ ) {
+            for( int i = xStart; i <= xEnd; i++ ) {
+                int x = forward ? i : (xEnd - (i - xStart));
+                result.add(new Vector3f(x * size + size * 0.5f, 0, z * size + size * 0.5f));
+            }
+            forward = !forward;
+        }
+        return result;
+    }
+
+    @Override
+    public void simpleInitApp() {
+
+        // The tree setup uses Lemur materials
+        GuiGlobals.initialize(this);
+
+        for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    @Override
+    public void simpleUpdate( float tpf ) {
+
+        if( mover == null ) {
+            // Wait for the terrain state to be initialized
+            TerrainState terrain = stateManager.getState(TerrainState.class);
+            if( !terrain.isInitialized() ) {
+                return;
+            }
+            mover = terrain.getLandMovementHandler();
+            stats = terrain.getChunkStats();
+            stats.reset();
+
+            position.set(waypoints.get(0));
+            position.y = height;
+            mover.setLocation(position);
+            nextWaypoint = followPath ? 1 : 0;
+            startTime = System.nanoTime();
+            stepStart = startTime;
+            log.info("Paging " + waypoints.size() + " " + (followPath ? "path points" : "region chunks"));
+        }
+
+        peakDirect = Math.max(peakDirect, MemoryUtils.getDirectMemoryUsage());
+
+        if( followPath && nextWaypoint < waypoints.size() ) {
+            moveAlongPath(tpf);
+            return;
+        }
+
+        long time = System.nanoTime();
+        if( time - stepStart < settleNanos || time - stats.getLastBuildTime() < settleNanos
+            || !stateManager.getState(ZoneBuilderState.class).getBuilder().isQuiescent() ) {
+            // Still building
+            return;
+        }
+
+        // Only count the time from each step's start to its last build
+        // and not the settle wait after it.  A path is one long step.
+        long lastBuild = stats.getLastBuildTime();
+        if( followPath ) {
+            busyNanos = Math.max(0, lastBuild - startTime);
+        } else if( lastBuild > stepStart ) {
+            busyNanos += lastBuild - stepStart;
+        }
+
+        if( followPath || nextWaypoint >= waypoints.size() - 1 ) {
+            report(time);
+            stop();
+            return;
+        }
+
+        nextWaypoint++;
+        position.set(waypoints.get(nextWaypoint));
+        position.y = height;
+        mover.setLocation(position);
+        stepStart = time;
+    }
+
+    protected void moveAlongPath( float tpf ) {
+        float remaining = speed * tpf;
+        while( remaining > 0 && nextWaypoint < waypoints.size() ) {
+            target.set(waypoints.get(nextWaypoint));
+            target.y = height;
+            float distance = position.distance(target);
+            if( distance <= remaining ) {
+                position.set(target);
+                remaining -= distance;
+                nextWaypoint++;
+            } else {
+                target.subtractLocal(position).multLocal(remaining / distance);
+                position.addLocal(target);
+                remaining = 0;
+            }
+        }
+        mover.setLocation(position);
+        stepStart = System.nanoTime();
+    }
+
+    protected void report( long endTime ) {
+        double seconds = busyNanos / 1000000000.0;
+        double wallSeconds = (endTime - startTime) / 1000000000.0;
+        long chunks = stats.getChunkCount();
+
+        long peakHeap = 0;
+        for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if( pool.getType() == MemoryType.HEAP ) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        log.info(String.format("Chunks built: %d (%d empty, %d skipped, %d from cache) in %.2f busy seconds"
+                               + " (%.2f seconds with settling)",
+                               chunks, stats.getEmptyChunkCount(), stats.getSkippedChunkCount(),
+                               stats.getCachedChunkCount(), seconds, wallSeconds));
+        log.info(String.format("Chunks per second: %.2f", seconds > 0 ? chunks / seconds : 0));
+        log.info(String.format("Average mesh time: %.3f ms", stats.getAverageBuildMillis()));
+        log.info(String.format("Triangles: %d", stats.getTriangleCount()));
+        log.info(String.format("Vertex weld ratio: %.2f", stats.getWeldRatio()));
+        log.info(String.format("Peak heap: %.2f meg", peakHeap / (1024.0 * 1024.0)));
+        log.info(String.format("Peak direct memory: %.2f meg", peakDirect / (1024.0 * 1024.0)));
+
+        if( zoneEvents != null ) {
+            ZoneEvents.setEnabled(false);
+            MetricsState.writeZoneEvents(zoneEvents);
+        }
+    }
+}
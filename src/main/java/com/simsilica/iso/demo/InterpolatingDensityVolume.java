@@ -0,0 +1,296 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.math.Vector3f;
+import com.simsilica.iso.DensityVolume;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *  A block sampling front for an expensive density volume that only
+ *  evaluates the real function where it matters.  A block is first
+ *  sampled on a coarse lattice.  Coarse cells whose corners all have
+ *  the same sign and are far enough from zero are filled by trilinear
+ *  interpolation of their corners, everything else is sampled exactly.
+ *
+ *  <p>"Far enough" is a multiple of the largest change between
+ *  neighboring samples, which is measured from the first few blocks
+ *  that are sampled exactly.  With that bound, any sample that is
+ *  interpolated is more than three steps from the surface.  So every
+ *  sample marching cubes uses for vertex positions and normals, those
+ *  within two steps of the surface, is exact and the resulting meshes
+ *  are the same as from fully sampled blocks.  Only the values
+ *  deep inside the air or the ground are approximated.</p>
+ *
+ *  <p>Single sample getDensity() calls go straight to the
+ *  delegate.</p>
+ */
+public class InterpolatingDensityVolume implements BlockDensityVolume {
+
+    private final DensityVolume delegate;
+    private final int step;
+    private float safetyFactor = 2;
+    private int minLearnedBlocks = 8;
+    private final AtomicInteger learnedBlocks = new AtomicInteger();
+    private volatile float maxStep;
+    private final AtomicInteger exactCount = new AtomicInteger();
+    private final AtomicInteger interpolatedCount = new AtomicInteger();
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+            @Override
+            protected Scratch initialValue() {
+                return new Scratch();
+            }
+        };
+
+    public InterpolatingDensityVolume( DensityVolume delegate ) {
+        this(delegate, 4);
+    }
+
+    /**
+     *  Creates an interpolating front for the specified volume using
+     *  the specified coarse lattice spacing.
+     */
+    public InterpolatingDensityVolume( DensityVolume delegate, int step ) {
+        this.delegate = delegate;
+        this.step = step;
+    }
+
+    public DensityVolume getDelegate() {
+        return delegate;
+    }
+
+    /**
+     *  Returns the largest density change between neighboring samples
+     *  measured so far.
+     */
+    public float getMaxStep() {
+        return maxStep;
+    }
+
+    /**
+     *  Returns the fraction of block samples that were interpolated
+     *  rather than evaluated.
+     */
+    public double getInterpolatedRatio() {
+        double exact = exactCount.get();
+        double interpolated = interpolatedCount.get();
+        double total = exact + interpolated;
+        return total == 0 ? 0 : interpolated / total;
+    }
+
+    @Override
+    public float getDensity( int x, int y, int z ) {
+        return delegate.getDensity(x, y, z);
+    }
+
+    @Override
+    public float getDensity( float x, float y, float z ) {
+        return delegate.getDensity(x, y, z);
+    }
+
+    @Override
+    public Vector3f getFieldDirection( float x, float y, float z, Vector3f target ) {
+        return delegate.getFieldDirection(x, y, z, target);
+    }
+
+    @Override
+    public void getDensities( int x, int y, int z, int sizeX, int sizeY, int sizeZ,
+                              float[] target, int offset ) {
+        if( learnedBlocks.get() < minLearnedBlocks ) {
+            // Still learning the step bound so sample everything
+            DensityBlocks.fill(delegate, x, y, z, sizeX, sizeY, sizeZ, target, offset);
+            learned(DensityBlocks.maxStep(target, offset, sizeX, sizeY, sizeZ));
+            exactCount.addAndGet(sizeX * sizeY * sizeZ);
+            return;
+        }
+
+        Scratch s = scratch.get();
+        int total = sizeX * sizeY * sizeZ;
+        boolean[] exact = s.getExact(total);
+        Arrays.fill(exact, 0, total, false);
+
+        // Sample the coarse lattice.  It always includes the last
+        // sample on each axis.
+        int cx = (sizeX - 1 + step - 1) / step + 1;
+        int cy = (sizeY - 1 + step - 1) / step + 1;
+        int cz = (sizeZ - 1 + step - 1) / step + 1;
+        float[] coarse = s.getCoarse(cx * cy * cz);
+        int index = 0;
+        for( int k = 0; k < cz; k++ ) {
+            int zi = Math.min(k * step, sizeZ - 1);
+            for( int j = 0; j < cy; j++ ) {
+                int yi = Math.min(j * step, sizeY - 1);
+                for( int i = 0; i < cx; i++ ) {
+                    int xi = Math.min(i * step, sizeX - 1);
+                    float d = delegate.getDensity(x + xi, y + yi, z + zi);
+                    coarse[index++] = d;
+                    int b = (zi * sizeY + yi) * sizeX + xi;
+                    target[offset + b] = d;
+                    exact[b] = true;
+                }
+            }
+        }
+
+        // Any sample is within step/2 of a lattice point on each axis,
+        // interior samples of an interpolated cell are then more than
+        // guard - 1.5 * step * maxStep >= 3 * maxStep from the surface.
+        float guard = maxStep * (1.5f * step + 3) * safetyFactor;
+        for( int k = 0; k < cz - 1; k++ ) {
+            int z0 = k * step;
+            int z1 = Math.min(z0 + step, sizeZ - 1);
+            for( int j = 0; j < cy - 1; j++ ) {
+                int y0 = j * step;
+                int y1 = Math.min(y0 + step, sizeY - 1);
+                for( int i = 0; i < cx - 1; i++ ) {
+                    int x0 = i * step;
+                    int x1 = Math.min(x0 + step, sizeX - 1);
+
+                    int c = (k * cy + j) * cx + i;
+                    float c000 = coarse[c];
+                    float c100 = coarse[c + 1];
+                    float c010 = coarse[c + cx];
+                    float c110 = coarse[c + cx + 1];
+                    float c001 = coarse[c + cx * cy];
+                    float c101 = coarse[c + cx * cy + 1];
+                    float c011 = coarse[c + cx * cy + cx];
+                    float c111 = coarse[c + cx * cy + cx + 1];
+
+                    if( isFar(guard, c000, c100, c010, c110, c001, c101, c011, c111) ) {
+                        interpolate(target, offset, exact, sizeX, sizeY,
+                                    x0, x1, y0, y1, z0, z1,
+                                    c000, c100, c010, c110, c001, c101, c011, c111);
+                    } else {
+                        // Mark the whole cell as needing real samples
+                        for( int zi = z0; zi <= z1; zi++ ) {
+                            for( int yi = y0; yi <= y1; yi++ ) {
+                                int b = (zi * sizeY + yi) * sizeX + x0;
+                                for( int xi = x0; xi <= x1; xi++, b++ ) {
+                                    if( !exact[b] ) {
+                                        target[offset + b] = delegate.getDensity(x + xi, y + yi, z + zi);
+                                        exact[b] = true;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        int interpolated = 0;
+        for( int b = 0; b < total; b++ ) {
+            if( !exact[b] ) {
+                interpolated++;
+            }
+        }
+        interpolatedCount.addAndGet(interpolated);
+        exactCount.addAndGet(total - interpolated);
+    }
+
+    private static boolean isFar( float guard, float c000, float c100, float c010, float c110,
+                                  float c001, float c101, float c011, float c111 ) {
+        if( c000 > 0 ) {
+            return c000 > guard && c100 > guard && c010 > guard && c110 > guard
+                && c001 > guard && c101 > guard && c011 > guard && c111 > guard;
+        }
+        float neg = -guard;
+        return c000 < neg && c100 < neg && c010 < neg && c110 < neg
+            && c001 < neg && c101 < neg && c011 < neg && c111 < neg;
+    }
+
+    /**
+     *  Fills the samples of one coarse cell that haven't already been
+     *  sampled exactly.  Samples on
+     *  a shared face may later be overwritten with exact values by a
+     *  neighboring cell, which is fine.
+     */
+    private static void interpolate( float[] target, int offset, boolean[] exact, int sizeX, int sizeY,
+                                     int x0, int x1, int y0, int y1, int z0, int z1,
+                                     float c000, float c100, float c010, float c110,
+                                     float c001, float c101, float c011, float c111 ) {
+        float xScale = x1 > x0 ? 1f / (x1 - x0) : 0;
+        float yScale = y1 > y0 ? 1f / (y1 - y0) : 0;
+        float zScale = z1 > z0 ? 1f / (z1 - z0) : 0;
+        for( int zi = z0; zi <= z1; zi++ ) {
+            float tz = (zi - z0) * zScale;
+            float e00 = c000 + (c001 - c000) * tz;
+            float e10 = c100 + (c101 - c100) * tz;
+            float e01 = c010 + (c011 - c010) * tz;
+            float e11 = c110 + (c111 - c110) * tz;
+            for( int yi = y0; yi <= y1; yi++ ) {
+                float ty = (yi - y0) * yScale;
+                float left = e00 + (e01 - e00) * ty;
+                float right = e10 + (e11 - e10) * ty;
+                float delta = (right - left) * xScale;
+                int b = (zi * sizeY + yi) * sizeX + x0;
+                for( int xi = x0; xi <= x1; xi++, b++ ) {
+                    if( !exact[b] ) {
+                        target[offset + b] = left + delta * (xi - x0);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void learned( float step ) {
+        if( step > maxStep ) {
+            maxStep = step;
+        }
+        learnedBlocks.incrementAndGet();
+    }
+
+    private static class Scratch {
+        private boolean[] exact;
+        private float[] coarse;
+
+        public boolean[] getExact( int size ) {
+            if( exact == null || exact.length < size ) {
+                exact = new boolean[size];
+            }
+            return exact;
+        }
+
+        public float[] getCoarse( int size ) {
+            if( coarse == null || coarse.length < size ) {
+                coarse = new float[size];
+            }
+            return coarse;
+        }
+    }
+}
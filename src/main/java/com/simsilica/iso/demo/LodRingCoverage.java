@@ -0,0 +1,278 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Spatial.CullHint;
+import com.simsilica.builder.BuilderReference;
+import com.simsilica.pager.Grid;
+import com.simsilica.pager.Zone;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ *  Turns the nested, camera centered terrain rings into annuli.  The
+ *  levels are added finest first and each level's cells are expected
+ *  to be exactly ratio times as wide as the level inside it, with all
+ *  of the grids starting at 0 in x and z and paging the same y layers.
+ *
+ *  <p>A coarse column whose ratio x ratio block of finer columns lies
+ *  inside the finer level's paged region is hidden once all of those
+ *  finer zones have been applied.  A finer column whose block sticks
+ *  out past the finer region is hidden once the coarse zones over it
+ *  have been applied.  So each piece of land is shown at exactly one
+ *  resolution without ever leaving a hole while zones are still
+ *  building.  Coarse columns that are at least one coarse cell inside
+ *  the finer region are never needed at all and isInterior() lets the
+ *  ZoneScheduler hold them back instead of building them.  Where two
+ *  levels meet the surfaces differ slightly and the chunk skirts
+ *  cover the cracks.</p>
+ *
+ *  <p>Tracks applied zones through the ZoneBuilder's ZoneListener and
+ *  all methods are expected to be called from the update thread.</p>
+ */
+public class LodRingCoverage implements ZoneBuilder.ZoneListener {
+
+    private final int ratio;
+    private final List<Level> levels = new ArrayList<Level>();
+    private final Map<Grid, Level> levelIndex = new IdentityHashMap<Grid, Level>();
+    private final Vector3f temp = new Vector3f();
+    private float centerX;
+    private float centerZ;
+    private boolean dirty;
+
+    public LodRingCoverage( int ratio ) {
+        this.ratio = ratio;
+    }
+
+    /**
+     *  Adds the next coarser level, paged by a PagedGrid of the
+     *  specified grid, radius, and number of y layers.
+     */
+    public void addLevel( Grid grid, int radius, int yLayers ) {
+        Level level = new Level(levels.size(), grid, radius, yLayers);
+        levels.add(level);
+        levelIndex.put(grid, level);
+        level.setCenter(centerX, centerZ);
+        dirty = true;
+    }
+
+    /**
+     *  Sets the world x, z location that all of the levels' PagedGrids
+     *  are centered on.
+     */
+    public void setCenter( float x, float z ) {
+        this.centerX = x;
+        this.centerZ = z;
+        for( Level level : levels ) {
+            dirty |= level.setCenter(x, z);
+        }
+    }
+
+    /**
+     *  Returns true if the specified zone is a coarse zone that is
+     *  entirely under the next finer level with at least a cell
+     *  to spare and so doesn't need to be built.
+     */
+    public boolean isInterior( BuilderReference ref ) {
+        if( !(ref instanceof Zone) ) {
+            return false;
+        }
+        Zone zone = (Zone)ref;
+        Level level = levelIndex.get(zone.getGrid());
+        if( level == null || level.index == 0 ) {
+            return false;
+        }
+        Level finer = levels.get(level.index - 1);
+        level.getColumn(zone, temp);
+        int x = (int)temp.x * ratio;
+        int z = (int)temp.z * ratio;
+        return finer.contains(x - ratio, z - ratio)
+            && finer.contains(x + ratio * 2 - 1, z + ratio * 2 - 1);
+    }
+
+    @Override
+    public void zoneApplied( BuilderReference ref ) {
+        if( !(ref instanceof Zone) ) {
+            return;
+        }
+        Zone zone = (Zone)ref;
+        Level level = levelIndex.get(zone.getGrid());
+        if( level != null && level.applied.add(zone) ) {
+            level.getColumn(zone, temp);
+            level.adjustCount((int)temp.x, (int)temp.z, 1);
+            dirty = true;
+        }
+    }
+
+    @Override
+    public void zoneReleased( BuilderReference ref ) {
+        if( !(ref instanceof Zone) ) {
+            return;
+        }
+        Zone zone = (Zone)ref;
+        Level level = levelIndex.get(zone.getGrid());
+        if( level != null && level.applied.remove(zone) ) {
+            level.getColumn(zone, temp);
+            level.adjustCount((int)temp.x, (int)temp.z, -1);
+            dirty = true;
+        }
+    }
+
+    /**
+     *  Shows or hides the applied zones of every level if anything
+     *  has changed since the last call.
+     */
+    @Override
+    public void updatesApplied() {
+        if( !dirty ) {
+            return;
+        }
+        dirty = false;
+        for( Level level : levels ) {
+            Level finer = level.index > 0 ? levels.get(level.index - 1) : null;
+            Level coarser = level.index + 1 < levels.size() ? levels.get(level.index + 1) : null;
+            for( Zone zone : level.applied ) {
+                level.getColumn(zone, temp);
+                int x = (int)temp.x;
+                int z = (int)temp.z;
+                boolean hidden = finer != null && isBlockCovered(finer, x * ratio, z * ratio);
+                if( !hidden && coarser != null ) {
+                    int cx = floorDiv(x, ratio);
+                    int cz = floorDiv(z, ratio);
+                    hidden = !isBlockInside(level, cx * ratio, cz * ratio)
+                             && coarser.isComplete(cx, cz);
+                }
+                zone.getZoneRoot().setCullHint(hidden ? CullHint.Always : CullHint.Inherit);
+            }
+        }
+    }
+
+    /**
+     *  Returns true if the block of finer columns starting at x, z
+     *  is inside the finer level's region and fully applied.
+     */
+    private boolean isBlockCovered( Level finer, int x, int z ) {
+        if( !isBlockInside(finer, x, z) ) {
+            return false;
+        }
+        for( int i = 0; i < ratio; i++ ) {
+            for( int j = 0; j < ratio; j++ ) {
+                if( !finer.isComplete(x + i, z + j) ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isBlockInside( Level level, int x, int z ) {
+        return level.contains(x, z) && level.contains(x + ratio - 1, z + ratio - 1);
+    }
+
+    private static int floorDiv( int a, int b ) {
+        int result = a / b;
+        return (a % b != 0 && (a < 0)) ? result - 1 : result;
+    }
+
+    private static Long columnKey( int x, int z ) {
+        return ((long)x << 32) | (z & 0xffffffffL);
+    }
+
+    private static class Level {
+        final int index;
+        final Grid grid;
+        final int radius;
+        final int yLayers;
+        final float spacing;
+        final Set<Zone> applied = Collections.newSetFromMap(new IdentityHashMap<Zone, Boolean>());
+        final Map<Long, Integer> counts = new HashMap<Long, Integer>();
+        int centerX;
+        int centerZ;
+
+        Level( int index, Grid grid, int radius, int yLayers ) {
+            this.index = index;
+            this.grid = grid;
+            this.radius = radius;
+            this.yLayers = yLayers;
+            this.spacing = grid.getSpacing().x;
+        }
+
+        boolean setCenter( float x, float z ) {
+            int cx = (int)Math.floor(x / spacing);
+            int cz = (int)Math.floor(z / spacing);
+            if( cx == centerX && cz == centerZ ) {
+                return false;
+            }
+            centerX = cx;
+            centerZ = cz;
+            return true;
+        }
+
+        boolean contains( int x, int z ) {
+            return Math.abs(x - centerX) <= radius && Math.abs(z - centerZ) <= radius;
+        }
+
+        void getColumn( Zone zone, Vector3f store ) {
+            zone.getWorldLocation(store);
+            store.x = Math.round(store.x / spacing);
+            store.z = Math.round(store.z / spacing);
+        }
+
+        void adjustCount( int x, int z, int delta ) {
+            Long key = columnKey(x, z);
+            Integer count = counts.get(key);
+            int value = (count != null ? count : 0) + delta;
+            if( value <= 0 ) {
+                counts.remove(key);
+            } else {
+                counts.put(key, value);
+            }
+        }
+
+        boolean isComplete( int x, int z ) {
+            Integer count = counts.get(columnKey(x, z));
+            return count != null && count >= yLayers;
+        }
+    }
+}
@@ -44,7 +44,6 @@ import com.jme3.app.state.VideoRecorderAppState;
 import com.jme3.math.FastMath;
 import com.jme3.math.Vector3f;
 import com.jme3.system.AppSettings;
-import com.simsilica.builder.BuilderState;
 import com.simsilica.fx.LightingState;
 import com.simsilica.fx.sky.SkyState;
 import com.simsilica.fx.sky.SkySettingsState;
@@ -97,19 +96,22 @@ public class Main extends SimpleApplication {
  
     public Main() {
         super(new StatsAppState(), new DebugKeysAppState(),
+              new MetricsState(),
               new LightingState(),
               new SkyState(),
               new SkySettingsState(),
               new MovementState(),
               new TerrainState(),
+              new PhysicsClockState(),
               new WalkingMovementHandler(),
               new TestArrowState(),
               new SettingsPanelState(),
-              new CameraState(70, 0.1f, 1000),
+              new CameraState(70, 0.1f, 3000),
               new MaterialSettingsState(),
               new PostProcessingState(),
               new DebugHudState(),
-              new BuilderState(4, 4),
+              new FlythroughState(),
+              new ZoneBuilderState(16),
               new ScreenshotAppState("", System.currentTimeMillis())); 
     }
  
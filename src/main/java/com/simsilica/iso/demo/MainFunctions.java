@@ -53,10 +53,16 @@ public class MainFunctions {
     public static final FunctionId F_TOGGLE_MOVEMENT = new FunctionId(GROUP, "Toggle Movement");
     public static final FunctionId F_HUD = new FunctionId(GROUP, "HUD Toggle");
     public static final FunctionId F_RECORD_VIDEO = new FunctionId(GROUP, "Record Video");
+    public static final FunctionId F_FLYTHROUGH = new FunctionId(GROUP, "Flythrough Benchmark");
+    public static final FunctionId F_DUMP_METRICS = new FunctionId(GROUP, "Dump Metrics");
+    public static final FunctionId F_RECORD_ZONE_EVENTS = new FunctionId(GROUP, "Record Zone Events");
 
     public static void initializeDefaultMappings( InputMapper inputMapper ) {
         inputMapper.map( F_TOGGLE_MOVEMENT, KeyInput.KEY_SPACE );
         inputMapper.map( F_HUD, KeyInput.KEY_F3 );
         inputMapper.map( F_RECORD_VIDEO, KeyInput.KEY_F12 );
+        inputMapper.map( F_FLYTHROUGH, KeyInput.KEY_F9 );
+        inputMapper.map( F_DUMP_METRICS, KeyInput.KEY_F8 );
+        inputMapper.map( F_RECORD_ZONE_EVENTS, KeyInput.KEY_F7 );
     }
 }
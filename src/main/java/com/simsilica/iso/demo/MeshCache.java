@@ -0,0 +1,505 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Format;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.VertexBuffer.Usage;
+import com.jme3.util.BufferUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  A persistent on-disk cache of finished chunk meshes.  Each chunk
+ *  is stored in its own small binary file named for the chunk's sample
+ *  origin, inside a directory whose name is a hash of everything that
+ *  went into generating it (volume, chunk size, scale, offset).
+ *  Changing any of those parameters simply starts a fresh directory.
+ *
+ *  <p>Cached chunks are read into a per-thread heap buffer and copied
+ *  from there into direct buffers taken from a DirectBufferPool
+ *  allocation, so loading doesn't leave a file mapping behind for
+ *  each chunk.  The mode, buffer types and formats are stored by name
+ *  so that the files don't depend on the enum order of the jME
+ *  version that wrote them.</p>
+ *
+ *  <p>Each cache directory holds at most maxBytes of chunk files.
+ *  Past that, the least recently used chunks are deleted.  Loads touch
+ *  the file's modification time so that use is remembered between
+ *  runs.</p>
+ *
+ *  <p>Note: the key can only include what is visible from here.  If the
+ *  density function's implementation itself changes then the cache
+ *  directory needs to be cleared by hand.</p>
+ *
+ *  <p>All methods are safe to call from multiple builder threads.</p>
+ */
+public class MeshCache {
+
+    static Logger log = LoggerFactory.getLogger(MeshCache.class);
+
+    private static final int MAGIC = 0x49534F43; // ISOC
+    private static final int VERSION = 2;
+    private static final int FLAG_NULL_MESH = 1;
+    private static final String SUFFIX = ".chunk";
+
+    private static final ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<ByteBuffer>();
+
+    private final File dir;
+    private final Map<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final long maxBytes;
+
+    public MeshCache( File root, String key ) {
+        this(root, key, Long.MAX_VALUE);
+    }
+
+    public MeshCache( File root, String key, long maxBytes ) {
+        this.dir = new File(root, key);
+        this.maxBytes = maxBytes;
+        if( !dir.exists() && !dir.mkdirs() ) {
+            log.warn("Unable to create mesh cache directory:" + dir);
+        }
+
+        // Index what is already there so that lookups don't need to
+        // touch the file system.
+        File[] files = dir.listFiles();
+        if( files != null ) {
+            for( File f : files ) {
+                String name = f.getName();
+                if( name.endsWith(SUFFIX) ) {
+                    Entry entry = new Entry(f.length(), f.lastModified());
+                    index.put(name.substring(0, name.length() - SUFFIX.length()), entry);
+                    totalBytes.addAndGet(entry.size);
+                }
+            }
+        }
+        log.info("Mesh cache:" + dir + " contains " + index.size() + " chunks, "
+                 + (totalBytes.get() / 1024) + " k");
+        prune();
+    }
+
+    /**
+     *  Creates a cache key from the generation parameters.  Callers
+     *  should include anything that affects the generated meshes.
+     */
+    public static String createKey( Object... parts ) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("v").append(VERSION);
+        for( Object o : parts ) {
+            sb.append('|').append(o);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(sb.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for( int i = 0; i < 10; i++ ) {
+                hex.append(String.format("%02x", hash[i] & 0xff));
+            }
+            return hex.toString();
+        } catch( NoSuchAlgorithmException e ) {
+            throw new RuntimeException("Error creating cache key", e);
+        } catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException("Error creating cache key", e);
+        }
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     *  Returns the total size of the cached chunk files in bytes.
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean contains( int x, int y, int z ) {
+        return index.containsKey(name(x, y, z));
+    }
+
+    private static String name( int x, int y, int z ) {
+        return x + "_" + y + "_" + z;
+    }
+
+    /**
+     *  Loads the chunk mesh for the specified sample origin with its
+     *  buffers taken from the allocation, or from BufferUtils if the
+     *  allocation is null.  The returned mesh may be null if the chunk
+     *  was stored as empty.
+     */
+    public Mesh load( int x, int y, int z, DirectBufferPool.Allocation allocation ) throws IOException {
+        String name = name(x, y, z);
+        File f = new File(dir, name + SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            int size = (int)channel.size();
+            ByteBuffer in = readBuffer.get();
+            if( in == null || in.capacity() < size ) {
+                in = ByteBuffer.allocate(Math.max(size, 64 * 1024)).order(ByteOrder.LITTLE_ENDIAN);
+                readBuffer.set(in);
+            }
+            in.clear();
+            in.limit(size);
+            while( in.hasRemaining() ) {
+                if( channel.read(in) < 0 ) {
+                    throw new IOException("Truncated chunk file:" + f);
+                }
+            }
+            in.flip();
+            Mesh mesh = readMesh(in, allocation);
+            Entry entry = index.get(name);
+            if( entry != null ) {
+                entry.lastUsed = System.currentTimeMillis();
+                f.setLastModified(entry.lastUsed);
+            }
+            return mesh;
+        } catch( RuntimeException e ) {
+            // Most likely a truncated or otherwise damaged file
+            remove(name);
+            throw new IOException("Error reading cached chunk:" + f, e);
+        } catch( IOException e ) {
+            remove(name);
+            throw e;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void remove( String name ) {
+        Entry entry = index.remove(name);
+        if( entry != null ) {
+            totalBytes.addAndGet(-entry.size);
+        }
+    }
+
+    /**
+     *  Stores the chunk mesh for the specified sample origin.  Returns
+     *  false if the mesh could not be stored.
+     */
+    public boolean store( int x, int y, int z, Mesh mesh ) {
+        String name = name(x, y, z);
+        File temp = new File(dir, name + "." + Thread.currentThread().getId() + ".tmp");
+        File f = new File(dir, name + SUFFIX);
+        try {
+            ByteBuffer data = writeMesh(mesh);
+            if( data == null ) {
+                return false;
+            }
+            RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+            try {
+                raf.setLength(0);
+                FileChannel channel = raf.getChannel();
+                while( data.hasRemaining() ) {
+                    channel.write(data);
+                }
+            } finally {
+                raf.close();
+            }
+            if( !temp.renameTo(f) ) {
+                // Windows won't rename over an existing file
+                f.delete();
+                if( !temp.renameTo(f) ) {
+                    temp.delete();
+                    return false;
+                }
+            }
+            Entry entry = new Entry(f.length(), System.currentTimeMillis());
+            Entry old = index.put(name, entry);
+            totalBytes.addAndGet(entry.size - (old != null ? old.size : 0));
+            if( totalBytes.get() > maxBytes ) {
+                prune();
+            }
+            return true;
+        } catch( IOException e ) {
+            log.warn("Error caching chunk:" + f, e);
+            temp.delete();
+            return false;
+        }
+    }
+
+    /**
+     *  Deletes the least recently used chunks until the cache is back
+     *  under nine tenths of maxBytes, so that pruning isn't needed
+     *  again right away.
+     */
+    protected synchronized void prune() {
+        if( totalBytes.get() <= maxBytes ) {
+            return;
+        }
+        List<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(index.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+                @Override
+                public int compare( Map.Entry<String, Entry> a, Map.Entry<String, Entry> b ) {
+                    long t1 = a.getValue().lastUsed;
+                    long t2 = b.getValue().lastUsed;
+                    return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+                }
+            });
+        long target = maxBytes / 10 * 9;
+        int count = 0;
+        for( Map.Entry<String, Entry> e : entries ) {
+            if( totalBytes.get() <= target ) {
+                break;
+            }
+            // Only drop it if it wasn't replaced in the meantime
+            if( index.remove(e.getKey(), e.getValue()) ) {
+                totalBytes.addAndGet(-e.getValue().size);
+                new File(dir, e.getKey() + SUFFIX).delete();
+                count++;
+            }
+        }
+        log.info("Pruned " + count + " chunks from mesh cache:" + dir);
+    }
+
+    protected ByteBuffer writeMesh( Mesh mesh ) {
+        int size = 20;
+        if( mesh != null ) {
+            size = 12 + nameSize(mesh.getMode()) + 4;
+            for( VertexBuffer vb : mesh.getBufferList() ) {
+                if( toBytes(vb.getFormat()) == 0 ) {
+                    log.warn("Unsupported buffer format:" + vb.getFormat() + " in:" + vb);
+                    return null;
+                }
+                size += 16 + nameSize(vb.getBufferType()) + nameSize(vb.getFormat())
+                        + vb.getData().limit() * toBytes(vb.getFormat());
+                size = align(size);
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        if( mesh == null ) {
+            out.putInt(FLAG_NULL_MESH);
+            out.putInt(0);
+            out.putInt(0);
+            out.flip();
+            return out;
+        }
+        out.putInt(0);
+        putName(out, mesh.getMode());
+        out.putInt(mesh.getBufferList().size());
+        for( VertexBuffer vb : mesh.getBufferList() ) {
+            Buffer data = vb.getData();
+            data.rewind();
+            putName(out, vb.getBufferType());
+            putName(out, vb.getFormat());
+            out.putInt(vb.getNumComponents());
+            out.putInt(vb.isNormalized() ? 1 : 0);
+            out.putInt(data.limit());
+            out.putInt(data.limit() * toBytes(vb.getFormat()));
+            if( data instanceof FloatBuffer ) {
+                out.asFloatBuffer().put((FloatBuffer)data);
+            } else if( data instanceof ShortBuffer ) {
+                out.asShortBuffer().put((ShortBuffer)data);
+            } else if( data instanceof IntBuffer ) {
+                out.asIntBuffer().put((IntBuffer)data);
+            } else {
+                out.duplicate().put((ByteBuffer)data);
+            }
+            data.rewind();
+            out.position(align(out.position() + data.limit() * toBytes(vb.getFormat())));
+        }
+        out.flip();
+        return out;
+    }
+
+    private static int nameSize( Enum<?> value ) {
+        return align(4 + value.name().length());
+    }
+
+    /**
+     *  Writes the enum's name as a length and ASCII characters padded
+     *  to the next four bytes.
+     */
+    private static void putName( ByteBuffer out, Enum<?> value ) {
+        String name = value.name();
+        out.putInt(name.length());
+        for( int i = 0; i < name.length(); i++ ) {
+            out.put((byte)name.charAt(i));
+        }
+        out.position(align(out.position()));
+    }
+
+    private static <E extends Enum<E>> E getName( ByteBuffer in, Class<E> type ) throws IOException {
+        int length = in.getInt();
+        if( length < 0 || length > 64 ) {
+            throw new IOException("Bad " + type.getSimpleName() + " name length:" + length);
+        }
+        char[] chars = new char[length];
+        for( int i = 0; i < length; i++ ) {
+            chars[i] = (char)in.get();
+        }
+        in.position(align(in.position()));
+        try {
+            return Enum.valueOf(type, new String(chars));
+        } catch( IllegalArgumentException e ) {
+            throw new IOException("Unknown " + type.getSimpleName() + ":" + new String(chars));
+        }
+    }
+
+    protected Mesh readMesh( ByteBuffer in, DirectBufferPool.Allocation allocation ) throws IOException {
+        if( in.getInt() != MAGIC || in.getInt() != VERSION ) {
+            throw new IOException("Not a chunk file or wrong version");
+        }
+        int flags = in.getInt();
+        if( (flags & FLAG_NULL_MESH) != 0 ) {
+            return null;
+        }
+        Mesh mesh = new Mesh();
+        mesh.setMode(getName(in, Mesh.Mode.class));
+        int count = in.getInt();
+        for( int i = 0; i < count; i++ ) {
+            Type type = getName(in, Type.class);
+            Format format = getName(in, Format.class);
+            int components = in.getInt();
+            boolean normalized = in.getInt() != 0;
+            int elements = in.getInt();
+            int bytes = in.getInt();
+
+            ByteBuffer slice = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+            slice.limit(bytes);
+            in.position(align(in.position() + bytes));
+
+            Buffer data = copy(slice, format, elements, allocation);
+
+            VertexBuffer vb = new VertexBuffer(type);
+            vb.setupData(Usage.Static, components, format, data);
+            vb.setNormalized(normalized);
+            mesh.setBuffer(vb);
+        }
+        mesh.updateBound();
+        mesh.updateCounts();
+        return mesh;
+    }
+
+    private static Buffer copy( ByteBuffer bytes, Format format, int elements,
+                                DirectBufferPool.Allocation allocation ) {
+        switch( toBytes(format) ) {
+            case 4:
+                if( format == Format.Float ) {
+                    FloatBuffer fb = allocation != null ? allocation.createFloatBuffer(elements)
+                                                        : BufferUtils.createFloatBuffer(elements);
+                    fb.put(bytes.asFloatBuffer());
+                    fb.flip();
+                    return fb;
+                }
+                IntBuffer ib = allocation != null ? allocation.createIntBuffer(elements)
+                                                  : BufferUtils.createIntBuffer(elements);
+                ib.put(bytes.asIntBuffer());
+                ib.flip();
+                return ib;
+            case 2:
+                ShortBuffer sb = allocation != null ? allocation.createShortBuffer(elements)
+                                                    : BufferUtils.createShortBuffer(elements);
+                sb.put(bytes.asShortBuffer());
+                sb.flip();
+                return sb;
+            default:
+                ByteBuffer bb = allocation != null ? allocation.createByteBuffer(elements)
+                                                   : BufferUtils.createByteBuffer(elements);
+                bb.put(bytes);
+                bb.flip();
+                return bb;
+        }
+    }
+
+    private static int toBytes( Format format ) {
+        switch( format ) {
+            case Float:
+            case Int:
+            case UnsignedInt:
+                return 4;
+            case Short:
+            case UnsignedShort:
+                return 2;
+            case Byte:
+            case UnsignedByte:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private static int align( int position ) {
+        return (position + 3) & ~3;
+    }
+
+    private static class Entry {
+        final long size;
+        volatile long lastUsed;
+
+        Entry( long size, long lastUsed ) {
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Format;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.util.BufferUtils;
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *  Welds the duplicate vertices out of a triangle mesh and compacts
+ *  its indices.  Marching cubes emits every vertex once per triangle
+ *  that uses it, even though neighboring cubes compute the same edge
+ *  vertex with the same math.  Vertices are welded only when all of
+ *  their float attributes are bitwise equal so the welded mesh renders
+ *  exactly like the original.  Triangles that collapse when their
+ *  vertices are welded are dropped.
+ *
+ *  <p>Welding uses an open addressing hash table of vertex indices
+ *  keyed by position.  The indices are written as unsigned shorts when
+ *  the welded mesh has fewer than 65536 vertices and as ints
+ *  otherwise.</p>
+ *
+ *  <p>A welder keeps its tables between calls and so must be used
+ *  one per thread.</p>
+ */
+public class MeshWelder {
+
+    private int[] table = new int[0];
+    private int[] remap = new int[0];
+    private int[] source = new int[0];
+    private final List<VertexBuffer> attributes = new ArrayList<VertexBuffer>();
+    private final List<FloatBuffer> data = new ArrayList<FloatBuffer>();
+
+    public MeshWelder() {
+    }
+
+    /**
+     *  Returns a welded copy of the specified mesh with its buffers
+     *  taken from the allocation, or from BufferUtils if the allocation
+     *  is null.  Returns the original mesh if it isn't a triangle mesh
+     *  with all float vertex attributes.
+     */
+    public Mesh weld( Mesh mesh, DirectBufferPool.Allocation allocation ) {
+        if( mesh == null || mesh.getMode() != Mesh.Mode.Triangles ) {
+            return mesh;
+        }
+        VertexBuffer position = mesh.getBuffer(Type.Position);
+        if( position == null || position.getNumComponents() != 3 ) {
+            return mesh;
+        }
+        attributes.clear();
+        data.clear();
+        VertexBuffer index = null;
+        for( VertexBuffer vb : mesh.getBufferList() ) {
+            if( vb.getBufferType() == Type.Index ) {
+                index = vb;
+                continue;
+            }
+            if( !(vb.getData() instanceof FloatBuffer) ) {
+                return mesh;
+            }
+            attributes.add(vb);
+            data.add((FloatBuffer)vb.getData());
+        }
+        FloatBuffer pos = (FloatBuffer)position.getData();
+        int vertexCount = pos.limit() / 3;
+        int indexCount = index != null ? index.getData().limit() : vertexCount;
+
+        // Weld
+        int tableSize = Integer.highestOneBit(Math.max(vertexCount, 8) * 2) * 2;
+        if( table.length < tableSize ) {
+            table = new int[tableSize];
+        }
+        Arrays.fill(table, 0, tableSize, -1);
+        if( remap.length < vertexCount ) {
+            remap = new int[vertexCount];
+            source = new int[vertexCount];
+        }
+        int mask = tableSize - 1;
+        int count = 0;
+        for( int v = 0; v < vertexCount; v++ ) {
+            int slot = hash(pos, v) & mask;
+            int found = -1;
+            for( int w; (w = table[slot]) >= 0; slot = (slot + 1) & mask ) {
+                if( sameVertex(source[w], v) ) {
+                    found = w;
+                    break;
+                }
+            }
+            if( found < 0 ) {
+                found = count++;
+                source[found] = v;
+                table[slot] = found;
+            }
+            remap[v] = found;
+        }
+
+        // Rewrite the triangles, dropping any that collapsed.  They are
+        // counted first so that the index buffer is exactly sized.
+        Buffer oldIndexes = index != null ? index.getData() : null;
+        int kept = 0;
+        for( int i = 0; i + 2 < indexCount; i += 3 ) {
+            if( !isCollapsed(oldIndexes, i) ) {
+                kept += 3;
+            }
+        }
+        boolean shorts = count < 65536;
+        Buffer indexes = shorts ? createShortBuffer(allocation, kept)
+                                : createIntBuffer(allocation, kept);
+        for( int i = 0; i + 2 < indexCount; i += 3 ) {
+            if( isCollapsed(oldIndexes, i) ) {
+                continue;
+            }
+            int a = remap[getIndex(oldIndexes, i)];
+            int b = remap[getIndex(oldIndexes, i + 1)];
+            int c = remap[getIndex(oldIndexes, i + 2)];
+            if( shorts ) {
+                ((ShortBuffer)indexes).put((short)a).put((short)b).put((short)c);
+            } else {
+                ((IntBuffer)indexes).put(a).put(b).put(c);
+            }
+        }
+        indexes.flip();
+
+        Mesh result = new Mesh();
+        result.setMode(Mesh.Mode.Triangles);
+        for( int i = 0; i < attributes.size(); i++ ) {
+            VertexBuffer vb = attributes.get(i);
+            FloatBuffer from = data.get(i);
+            int components = vb.getNumComponents();
+            FloatBuffer to = createFloatBuffer(allocation, count * components);
+            for( int w = 0; w < count; w++ ) {
+                int base = source[w] * components;
+                for( int j = 0; j < components; j++ ) {
+                    to.put(from.get(base + j));
+                }
+            }
+            to.flip();
+            VertexBuffer copy = new VertexBuffer(vb.getBufferType());
+            copy.setupData(vb.getUsage(), components, vb.getFormat(), to);
+            copy.setNormalized(vb.isNormalized());
+            result.setBuffer(copy);
+        }
+        VertexBuffer ivb = new VertexBuffer(Type.Index);
+        ivb.setupData(index != null ? index.getUsage() : VertexBuffer.Usage.Static, 3,
+                      shorts ? Format.UnsignedShort : Format.UnsignedInt, indexes);
+        result.setBuffer(ivb);
+        result.updateBound();
+        result.updateCounts();
+
+        attributes.clear();
+        data.clear();
+        return result;
+    }
+
+    private boolean isCollapsed( Buffer indexes, int i ) {
+        int a = remap[getIndex(indexes, i)];
+        int b = remap[getIndex(indexes, i + 1)];
+        int c = remap[getIndex(indexes, i + 2)];
+        return a == b || b == c || a == c;
+    }
+
+    private static int getIndex( Buffer indexes, int i ) {
+        if( indexes == null ) {
+            return i;
+        }
+        if( indexes instanceof IntBuffer ) {
+            return ((IntBuffer)indexes).get(i);
+        }
+        return ((ShortBuffer)indexes).get(i) & 0xffff;
+    }
+
+    private static int hash( FloatBuffer pos, int v ) {
+        int h = Float.floatToIntBits(pos.get(v * 3));
+        h = h * 31 + Float.floatToIntBits(pos.get(v * 3 + 1));
+        h = h * 31 + Float.floatToIntBits(pos.get(v * 3 + 2));
+        return h ^ (h >>> 16);
+    }
+
+    private boolean sameVertex( int v1, int v2 ) {
+        for( int i = 0; i < attributes.size(); i++ ) {
+            int components = attributes.get(i).getNumComponents();
+            FloatBuffer fb = data.get(i);
+            int b1 = v1 * components;
+            int b2 = v2 * components;
+            for( int j = 0; j < components; j++ ) {
+                if( Float.floatToIntBits(fb.get(b1 + j)) != Float.floatToIntBits(fb.get(b2 + j)) ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static FloatBuffer createFloatBuffer( DirectBufferPool.Allocation allocation, int size ) {
+        return allocation != null ? allocation.createFloatBuffer(size) : BufferUtils.createFloatBuffer(size);
+    }
+
+    private static IntBuffer createIntBuffer( DirectBufferPool.Allocation allocation, int size ) {
+        return allocation != null ? allocation.createIntBuffer(size) : BufferUtils.createIntBuffer(size);
+    }
+
+    private static ShortBuffer createShortBuffer( DirectBufferPool.Allocation allocation, int size ) {
+        return allocation != null ? allocation.createShortBuffer(size) : BufferUtils.createShortBuffer(size);
+    }
+}
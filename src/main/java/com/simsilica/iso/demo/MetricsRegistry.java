@@ -0,0 +1,473 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  A registry of named counters, timers and gauges that the different
+ *  parts of the demo publish into: the update loop, the zone builder,
+ *  the colliders.  Counters and timers can be updated from any thread.
+ *  Once per sample period the owner calls sample() on the update thread
+ *  to turn the running totals into per-second rates and window
+ *  averages, which is what the HUD shows and the dumps contain.
+ *
+ *  <p>Frame times go into a histogram that is only touched from the
+ *  update thread.  Its percentiles are captured for each sample window.</p>
+ *
+ *  <p>Nothing here allocates once a metric has been created, and the
+ *  appendFixed() helper lets displays format numbers into a reused
+ *  StringBuilder instead of using String.format().</p>
+ */
+public class MetricsRegistry {
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    private final FrameHistogram frameWindow = new FrameHistogram("Frame time (us)");
+    private final FrameHistogram frameTotal = new FrameHistogram("Frame time (us)");
+    private volatile double frameP50;
+    private volatile double frameP95;
+    private volatile double frameP99;
+    private volatile double frameMax;
+    private long lastSample = -1;
+
+    public MetricsRegistry() {
+    }
+
+    /**
+     *  Returns the counter with the specified name, creating it
+     *  if needed.
+     */
+    public Counter counter( String name ) {
+        Counter result = counters.get(name);
+        if( result == null ) {
+            synchronized( counters ) {
+                result = counters.get(name);
+                if( result == null ) {
+                    result = new Counter(name);
+                    counters.put(name, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  Returns the timer with the specified name, creating it
+     *  if needed.
+     */
+    public Timer timer( String name ) {
+        Timer result = timers.get(name);
+        if( result == null ) {
+            synchronized( timers ) {
+                result = timers.get(name);
+                if( result == null ) {
+                    result = new Timer(name);
+                    timers.put(name, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  Returns the gauge with the specified name, creating it
+     *  if needed.
+     */
+    public Gauge gauge( String name ) {
+        Gauge result = gauges.get(name);
+        if( result == null ) {
+            synchronized( gauges ) {
+                result = gauges.get(name);
+                if( result == null ) {
+                    result = new Gauge(name);
+                    gauges.put(name, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  Returns the timers whose names start with the specified
+     *  prefix sorted by name.
+     */
+    public List<Timer> getTimers( String prefix ) {
+        List<Timer> result = new ArrayList<Timer>();
+        for( Timer t : timers.values() ) {
+            if( t.name.startsWith(prefix) ) {
+                result.add(t);
+            }
+        }
+        Collections.sort(result, new Comparator<Timer>() {
+                @Override
+                public int compare( Timer t1, Timer t2 ) {
+                    return t1.name.compareTo(t2.name);
+                }
+            });
+        return result;
+    }
+
+    /**
+     *  Records one update thread frame time.  Must be called from
+     *  the update thread.
+     */
+    public void recordFrame( long nanos ) {
+        long micros = nanos / 1000;
+        frameWindow.recordValue(micros);
+        frameTotal.recordValue(micros);
+    }
+
+    public double getFrameP50Millis() {
+        return frameP50;
+    }
+
+    public double getFrameP95Millis() {
+        return frameP95;
+    }
+
+    public double getFrameP99Millis() {
+        return frameP99;
+    }
+
+    public double getFrameMaxMillis() {
+        return frameMax;
+    }
+
+    /**
+     *  Returns the histogram of every frame time recorded, in
+     *  microseconds.  Only safe to read from the update thread.
+     */
+    public FrameHistogram getFrameTimes() {
+        return frameTotal;
+    }
+
+    /**
+     *  Closes the current sample window, updating the rates,
+     *  window averages and frame percentiles.  Must be called from
+     *  the update thread.
+     */
+    public void sample( long time ) {
+        if( lastSample < 0 ) {
+            lastSample = time;
+            return;
+        }
+        double seconds = (time - lastSample) / 1000000000.0;
+        if( seconds <= 0 ) {
+            return;
+        }
+        lastSample = time;
+        for( Counter c : counters.values() ) {
+            c.sample(seconds);
+        }
+        for( Timer t : timers.values() ) {
+            t.sample(seconds);
+        }
+        frameP50 = frameWindow.getValueAtPercentile(50) / 1000.0;
+        frameP95 = frameWindow.getValueAtPercentile(95) / 1000.0;
+        frameP99 = frameWindow.getValueAtPercentile(99) / 1000.0;
+        frameMax = frameWindow.getMax() / 1000.0;
+        frameWindow.reset();
+    }
+
+    /**
+     *  Writes every metric as one CSV row:
+     *  name, type, count, rate, mean ms, window mean ms, max ms, value
+     */
+    public void writeCsv( Writer out ) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("name,type,count,rate,meanMillis,windowMeanMillis,maxMillis,value\n");
+        row(sb, "frame.p50", "frame", frameTotal.getTotalCount(), 0, frameTotal.getValueAtPercentile(50) / 1000.0, frameP50, 0, 0);
+        row(sb, "frame.p95", "frame", frameTotal.getTotalCount(), 0, frameTotal.getValueAtPercentile(95) / 1000.0, frameP95, 0, 0);
+        row(sb, "frame.p99", "frame", frameTotal.getTotalCount(), 0, frameTotal.getValueAtPercentile(99) / 1000.0, frameP99, 0, 0);
+        row(sb, "frame.max", "frame", frameTotal.getTotalCount(), 0, frameTotal.getMax() / 1000.0, frameMax, 0, 0);
+        for( Counter c : sorted(counters) ) {
+            row(sb, c.name, "counter", c.getCount(), c.getRate(), 0, 0, 0, 0);
+        }
+        for( Timer t : sorted(timers) ) {
+            row(sb, t.name, "timer", t.getCount(), t.getRate(), t.getMeanMillis(),
+                t.getWindowMeanMillis(), t.getMaxMillis(), 0);
+        }
+        for( Gauge g : sorted(gauges) ) {
+            row(sb, g.name, "gauge", 0, 0, 0, 0, 0, g.getValue());
+        }
+        out.write(sb.toString());
+    }
+
+    private void row( StringBuilder sb, String name, String type, long count, double rate,
+                      double mean, double windowMean, double max, double value ) {
+        sb.append(name).append(',').append(type).append(',').append(count).append(',');
+        appendFixed(sb, rate, 3).append(',');
+        appendFixed(sb, mean, 3).append(',');
+        appendFixed(sb, windowMean, 3).append(',');
+        appendFixed(sb, max, 3).append(',');
+        appendFixed(sb, value, 3).append('\n');
+    }
+
+    /**
+     *  Writes every metric as a JSON object with "frame", "counters",
+     *  "timers" and "gauges" members.
+     */
+    public void writeJson( Writer out ) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"frame\": {\"count\": ").append(frameTotal.getTotalCount());
+        sb.append(", \"p50\": ");
+        appendFixed(sb, frameTotal.getValueAtPercentile(50) / 1000.0, 3);
+        sb.append(", \"p95\": ");
+        appendFixed(sb, frameTotal.getValueAtPercentile(95) / 1000.0, 3);
+        sb.append(", \"p99\": ");
+        appendFixed(sb, frameTotal.getValueAtPercentile(99) / 1000.0, 3);
+        sb.append(", \"max\": ");
+        appendFixed(sb, frameTotal.getMax() / 1000.0, 3);
+        sb.append("},\n  \"counters\": {");
+        String separator = "\n    ";
+        for( Counter c : sorted(counters) ) {
+            sb.append(separator).append('"').append(c.name).append("\": {\"count\": ").append(c.getCount());
+            sb.append(", \"rate\": ");
+            appendFixed(sb, c.getRate(), 3).append('}');
+            separator = ",\n    ";
+        }
+        sb.append("\n  },\n  \"timers\": {");
+        separator = "\n    ";
+        for( Timer t : sorted(timers) ) {
+            sb.append(separator).append('"').append(t.name).append("\": {\"count\": ").append(t.getCount());
+            sb.append(", \"rate\": ");
+            appendFixed(sb, t.getRate(), 3);
+            sb.append(", \"meanMillis\": ");
+            appendFixed(sb, t.getMeanMillis(), 3);
+            sb.append(", \"windowMeanMillis\": ");
+            appendFixed(sb, t.getWindowMeanMillis(), 3);
+            sb.append(", \"maxMillis\": ");
+            appendFixed(sb, t.getMaxMillis(), 3).append('}');
+            separator = ",\n    ";
+        }
+        sb.append("\n  },\n  \"gauges\": {");
+        separator = "\n    ";
+        for( Gauge g : sorted(gauges) ) {
+            sb.append(separator).append('"').append(g.name).append("\": ");
+            appendFixed(sb, g.getValue(), 3);
+            separator = ",\n    ";
+        }
+        sb.append("\n  }\n}\n");
+        out.write(sb.toString());
+    }
+
+    private static <T extends Metric> List<T> sorted( Map<String, T> map ) {
+        List<String> names = new ArrayList<String>(map.keySet());
+        Collections.sort(names);
+        List<T> result = new ArrayList<T>(names.size());
+        for( String name : names ) {
+            result.add(map.get(name));
+        }
+        return result;
+    }
+
+    /**
+     *  Appends the value with the specified number of decimal places
+     *  without creating any garbage.
+     */
+    public static StringBuilder appendFixed( StringBuilder sb, double value, int decimals ) {
+        if( Double.isNaN(value) || Double.isInfinite(value) ) {
+            return sb.append(0);
+        }
+        if( value < 0 ) {
+            sb.append('-');
+            value = -value;
+        }
+        long scale = 1;
+        for( int i = 0; i < decimals; i++ ) {
+            scale *= 10;
+        }
+        long fixed = Math.round(value * scale);
+        sb.append(fixed / scale);
+        if( decimals > 0 ) {
+            sb.append('.');
+            long fraction = fixed % scale;
+            for( long s = scale / 10; s > 0; s /= 10 ) {
+                sb.append((char)('0' + (fraction / s) % 10));
+            }
+        }
+        return sb;
+    }
+
+    /**
+     *  Base class for the named metrics.
+     */
+    public static abstract class Metric {
+        final String name;
+
+        protected Metric( String name ) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     *  A running count of events with the rate over the last
+     *  sample window.
+     */
+    public static class Counter extends Metric {
+        private final AtomicLong count = new AtomicLong();
+        private long lastCount;
+        private volatile double rate;
+
+        public Counter( String name ) {
+            super(name);
+        }
+
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        public void add( long delta ) {
+            count.addAndGet(delta);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         *  Returns the events per second over the last sample window.
+         */
+        public double getRate() {
+            return rate;
+        }
+
+        void sample( double seconds ) {
+            long c = count.get();
+            rate = (c - lastCount) / seconds;
+            lastCount = c;
+        }
+    }
+
+    /**
+     *  A count of timed events, their total and maximum time, and their
+     *  average time over the last sample window.
+     */
+    public static class Timer extends Metric {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private volatile long maxNanos;
+        private long lastCount;
+        private long lastNanos;
+        private volatile double rate;
+        private volatile double windowMean;
+
+        public Timer( String name ) {
+            super(name);
+        }
+
+        public void record( long nanos ) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            if( nanos > maxNanos ) {
+                // Racy but good enough for a display value
+                maxNanos = nanos;
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        public double getMeanMillis() {
+            long c = count.get();
+            return c == 0 ? 0 : (totalNanos.get() / 1000000.0) / c;
+        }
+
+        /**
+         *  Returns the average time of the events in the last sample
+         *  window or of the last window that had any.
+         */
+        public double getWindowMeanMillis() {
+            return windowMean;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos / 1000000.0;
+        }
+
+        void sample( double seconds ) {
+            long c = count.get();
+            long nanos = totalNanos.get();
+            if( c > lastCount ) {
+                windowMean = ((nanos - lastNanos) / 1000000.0) / (c - lastCount);
+            }
+            rate = (c - lastCount) / seconds;
+            lastCount = c;
+            lastNanos = nanos;
+        }
+    }
+
+    /**
+     *  A value that is set directly, like a queue depth.
+     */
+    public static class Gauge extends Metric {
+        private volatile double value;
+
+        public Gauge( String name ) {
+            super(name);
+        }
+
+        public void set( double value ) {
+            this.value = value;
+        }
+
+        public double getValue() {
+            return value;
+        }
+    }
+}
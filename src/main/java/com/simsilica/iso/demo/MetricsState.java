@@ -0,0 +1,196 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.app.Application;
+import com.simsilica.lemur.GuiGlobals;
+import com.simsilica.lemur.event.BaseAppState;
+import com.simsilica.lemur.input.InputMapper;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  Owns the application's MetricsRegistry.  Records the update
+ *  thread frame times, samples the builder's queue and pool into gauges,
+ *  and closes a sample window once a second.  The MainFunctions dump
+ *  metrics key writes the current metrics to CSV and JSON files in the
+ *  working directory.  The record zone events key starts ZoneEvents
+ *  recording and, when pressed again, stops it and writes the recorded
+ *  events to a CSV file.
+ *
+ *  <p>This state should be attached before the states that publish
+ *  into the registry, though they only need getRegistry() which works
+ *  before initialization.</p>
+ */
+public class MetricsState extends BaseAppState {
+
+    static Logger log = LoggerFactory.getLogger(MetricsState.class);
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private long sampleNanos = 1000000000L;
+    private long lastFrame = -1;
+    private long nextSample;
+
+    private MetricsRegistry.Gauge queueDepth;
+    private MetricsRegistry.Gauge activeBuilds;
+    private MetricsRegistry.Gauge readyZones;
+    private MetricsRegistry.Gauge poolSize;
+
+    public MetricsState() {
+    }
+
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     *  Writes the current metrics to metrics-[time].csv and
+     *  metrics-[time].json.
+     */
+    public void dumpMetrics() {
+        long time = System.currentTimeMillis();
+        write(new File("metrics-" + time + ".csv"), false);
+        write(new File("metrics-" + time + ".json"), true);
+    }
+
+    /**
+     *  Starts recording zone events or, if already recording, stops
+     *  and writes them to zone-events-[time].csv.
+     */
+    public void toggleZoneEvents() {
+        if( !ZoneEvents.isEnabled() ) {
+            ZoneEvents.clear();
+            ZoneEvents.setEnabled(true);
+            log.info("Recording zone events");
+            return;
+        }
+        ZoneEvents.setEnabled(false);
+        writeZoneEvents(new File("zone-events-" + System.currentTimeMillis() + ".csv"));
+    }
+
+    /**
+     *  Writes the recorded zone events to the specified file.
+     */
+    public static void writeZoneEvents( File file ) {
+        try {
+            Writer out = new FileWriter(file);
+            try {
+                ZoneEvents.writeCsv(out);
+            } finally {
+                out.close();
+            }
+            log.info("Wrote " + ZoneEvents.getEventCount() + " zone events:" + file);
+        } catch( IOException e ) {
+            log.error("Error writing zone events:" + file, e);
+        }
+    }
+
+    private void write( File file, boolean json ) {
+        try {
+            Writer out = new FileWriter(file);
+            try {
+                if( json ) {
+                    registry.writeJson(out);
+                } else {
+                    registry.writeCsv(out);
+                }
+            } finally {
+                out.close();
+            }
+            log.info("Wrote metrics:" + file);
+        } catch( IOException e ) {
+            log.error("Error writing metrics:" + file, e);
+        }
+    }
+
+    @Override
+    protected void initialize( Application app ) {
+        InputMapper inputMapper = GuiGlobals.getInstance().getInputMapper();
+        inputMapper.addDelegate(MainFunctions.F_DUMP_METRICS, this, "dumpMetrics");
+        inputMapper.addDelegate(MainFunctions.F_RECORD_ZONE_EVENTS, this, "toggleZoneEvents");
+
+        queueDepth = registry.gauge("builder.queueDepth");
+        activeBuilds = registry.gauge("builder.activeBuilds");
+        readyZones = registry.gauge("builder.ready");
+        poolSize = registry.gauge("builder.poolSize");
+    }
+
+    @Override
+    protected void cleanup( Application app ) {
+        InputMapper inputMapper = GuiGlobals.getInstance().getInputMapper();
+        inputMapper.removeDelegate(MainFunctions.F_DUMP_METRICS, this, "dumpMetrics");
+        inputMapper.removeDelegate(MainFunctions.F_RECORD_ZONE_EVENTS, this, "toggleZoneEvents");
+    }
+
+    @Override
+    protected void enable() {
+        lastFrame = -1;
+    }
+
+    @Override
+    protected void disable() {
+    }
+
+    @Override
+    public void update( float tpf ) {
+        long time = System.nanoTime();
+        if( lastFrame >= 0 ) {
+            registry.recordFrame(time - lastFrame);
+        }
+        lastFrame = time;
+
+        if( time < nextSample ) {
+            return;
+        }
+        nextSample = time + sampleNanos;
+
+        ZoneBuilderState builderState = getState(ZoneBuilderState.class);
+        if( builderState != null ) {
+            ZoneBuilder builder = builderState.getBuilder();
+            queueDepth.set(builder.getQueueDepth());
+            activeBuilds.set(builder.getActiveBuilds());
+            readyZones.set(builder.getReadyCount());
+            poolSize.set(builder.getPoolSize());
+        }
+        registry.sample(time);
+    }
+}
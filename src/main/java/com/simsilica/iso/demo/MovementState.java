@@ -73,6 +73,10 @@ public class MovementState extends BaseAppState
     private double elevation;
     private double speed = 3.0;
     private VersionedHolder<Vector3f> worldPos = new VersionedHolder<Vector3f>(new Vector3f());        
+    private Vector3f velocity = new Vector3f();
+    private Vector3f lastLocation = new Vector3f();
+    private Vector3f frameVelocity = new Vector3f();
+    private boolean hasLastLocation;
 
     public MovementState() {
     }
@@ -85,8 +89,17 @@ public class MovementState extends BaseAppState
         return worldPos;
     }
 
+    /**
+     *  Returns the smoothed velocity of the mover's location in
+     *  units per second, however it was moved.
+     */
+    public Vector3f getVelocity() {
+        return velocity;
+    }
+
     public void setMovementHandler( MovementHandler mover ) {
         this.mover = mover;
+        this.hasLastLocation = false;
         updateFacing();
     }
     
@@ -185,6 +198,8 @@ public class MovementState extends BaseAppState
     protected void disable() {
         inputMapper.deactivateGroup( MovementFunctions.GROUP_MOVEMENT );
         GuiGlobals.getInstance().setCursorEventsEnabled(true);        
+        velocity.set(0, 0, 0);
+        hasLastLocation = false;
     }
 
     @Override
@@ -207,6 +222,16 @@ public class MovementState extends BaseAppState
             mover.setLocation(loc);
             worldPos.setObject(loc); 
         }
+        
+        // Track how fast the location is actually changing, which
+        // also picks up walking, falling, and flythroughs.
+        Vector3f current = mover.getLocation();
+        if( hasLastLocation && tpf > 0 ) {
+            frameVelocity.set(current).subtractLocal(lastLocation).divideLocal(tpf);
+            velocity.interpolateLocal(frameVelocity, Math.min(1, tpf * 10));
+        }
+        lastLocation.set(current);
+        hasLastLocation = true;
     }
  
     /**
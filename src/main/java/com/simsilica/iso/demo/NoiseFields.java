@@ -0,0 +1,108 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import com.simsilica.iso.util.BilinearArray;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  A registry of the noise fields used by the plotting zone factories.
+ *  Each noise texture is decoded into a BilinearArray only once and the
+ *  same array is handed to every factory that asks for it.  The zone
+ *  factories only ever read from the arrays so sharing them across the
+ *  builder threads is safe as long as nobody writes to them.
+ *
+ *  <p>The arrays are kept as BilinearArrays on the heap because that is
+ *  what the factories take.</p>
+ */
+public class NoiseFields {
+
+    static Logger log = LoggerFactory.getLogger(NoiseFields.class);
+
+    private final AssetManager assets;
+    private final Map<String, BilinearArray> fields = new HashMap<String, BilinearArray>();
+    private long estimatedBytes;
+
+    public NoiseFields( AssetManager assets ) {
+        this.assets = assets;
+    }
+
+    /**
+     *  Returns the shared noise field for the specified texture asset,
+     *  decoding it the first time it is requested.
+     */
+    public synchronized BilinearArray get( String asset ) {
+        BilinearArray result = fields.get(asset);
+        if( result != null ) {
+            return result;
+        }
+        Texture texture = assets.loadTexture(asset);
+        result = BilinearArray.fromTexture(texture);
+        fields.put(asset, result);
+
+        // The arrays hold a float per channel per texel
+        Image image = texture.getImage();
+        int channels = Math.max(1, image.getFormat().getBitsPerPixel() / 8);
+        long bytes = (long)image.getWidth() * image.getHeight() * channels * 4;
+        estimatedBytes += bytes;
+        log.info("Decoded noise field:" + asset + "  " + image.getWidth() + "x" + image.getHeight()
+                    + " x" + channels + "  ~" + (bytes / 1024) + " k");
+        return result;
+    }
+
+    /**
+     *  Returns the number of distinct noise fields decoded so far.
+     */
+    public synchronized int size() {
+        return fields.size();
+    }
+
+    /**
+     *  Returns the estimated heap used by the decoded noise fields
+     *  in bytes.
+     */
+    public synchronized long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+}
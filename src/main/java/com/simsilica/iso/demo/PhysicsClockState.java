@@ -0,0 +1,149 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.app.Application;
+import com.simsilica.lemur.event.BaseAppState;
+
+
+/**
+ *  The fixed timestep clock shared by the physics in the demo, the
+ *  walker and the projectiles.  Each frame's time is added to an
+ *  accumulator and the physics then runs as many whole steps as have
+ *  accumulated.  What's left over is the fraction of a step that
+ *  rendering should interpolate by.
+ *
+ *  <p>A long frame runs at most maxSubsteps steps and the rest of its
+ *  time is dropped, so a render spike costs a bounded amount of physics
+ *  and the simulation slows down rather than falling further behind.</p>
+ *
+ *  <p>This state must be attached before the states that use it so
+ *  that it is updated first each frame.</p>
+ */
+public class PhysicsClockState extends BaseAppState {
+
+    private float step;
+    private int maxSubsteps;
+    private float accumulator;
+    private int steps;
+    private float alpha;
+    private long totalSteps;
+    private double droppedTime;
+
+    public PhysicsClockState() {
+        this(1 / 60f, 5);
+    }
+
+    public PhysicsClockState( float step, int maxSubsteps ) {
+        this.step = step;
+        this.maxSubsteps = maxSubsteps;
+    }
+
+    /**
+     *  Returns the length of one physics step in seconds.
+     */
+    public float getStep() {
+        return step;
+    }
+
+    public void setMaxSubsteps( int maxSubsteps ) {
+        this.maxSubsteps = maxSubsteps;
+    }
+
+    public int getMaxSubsteps() {
+        return maxSubsteps;
+    }
+
+    /**
+     *  Returns the number of physics steps to run this frame.
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     *  Returns how far rendering is between the previous physics
+     *  step and the latest one, 0 to 1.
+     */
+    public float getAlpha() {
+        return alpha;
+    }
+
+    public long getTotalSteps() {
+        return totalSteps;
+    }
+
+    /**
+     *  Returns the total frame time in seconds that was dropped
+     *  because frames took longer than maxSubsteps steps.
+     */
+    public double getDroppedTime() {
+        return droppedTime;
+    }
+
+    @Override
+    protected void initialize( Application app ) {
+    }
+
+    @Override
+    protected void cleanup( Application app ) {
+    }
+
+    @Override
+    protected void enable() {
+        accumulator = 0;
+    }
+
+    @Override
+    protected void disable() {
+        steps = 0;
+    }
+
+    @Override
+    public void update( float tpf ) {
+        accumulator += tpf;
+        steps = (int)(accumulator / step);
+        if( steps > maxSubsteps ) {
+            droppedTime += (steps - maxSubsteps) * step;
+            accumulator -= (steps - maxSubsteps) * step;
+            steps = maxSubsteps;
+        }
+        accumulator -= steps * step;
+        totalSteps += steps;
+        alpha = Math.min(1, accumulator / step);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ *  Runs one physics stage over a range of bodies split into contiguous
+ *  partitions on a small pool of worker threads, with the calling
+ *  thread taking the first partition itself.  run() returns once every
+ *  partition is done so that the results can then be applied on the
+ *  update thread.
+ *
+ *  <p>The partitions only depend on the body count and the minimum
+ *  batch size, never on timing, and each task only writes to its own
+ *  bodies.  As long as the tasks only read shared state that doesn't
+ *  change during the stage, the results are the same no matter how many
+ *  threads there are.</p>
+ */
+public class PhysicsExecutor {
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    /**
+     *  Creates an executor with the specified number of worker
+     *  threads in addition to the calling thread.
+     */
+    public PhysicsExecutor( int threads ) {
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread(r, "Physics-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    public int getThreadCount() {
+        return threads;
+    }
+
+    /**
+     *  Returns the number of partitions that run() will split
+     *  'count' bodies into.
+     */
+    public int getPartitionCount( int count, int minBatch ) {
+        int batches = (count + minBatch - 1) / minBatch;
+        return Math.max(1, Math.min(threads + 1, batches));
+    }
+
+    /**
+     *  Runs the task over the range 0 to count and waits for it to
+     *  finish.  Any exception thrown by a partition is rethrown here.
+     */
+    public void run( int count, int minBatch, final RangeTask task ) {
+        final int partitions = getPartitionCount(count, minBatch);
+        if( partitions == 1 ) {
+            task.run(0, 0, count);
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(partitions - 1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        for( int p = 1; p < partitions; p++ ) {
+            final int partition = p;
+            final int start = (int)((long)count * p / partitions);
+            final int end = (int)((long)count * (p + 1) / partitions);
+            executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run(partition, start, end);
+                        } catch( Throwable t ) {
+                            error.compareAndSet(null, t);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+        }
+        try {
+            task.run(0, 0, count / partitions);
+        } finally {
+            try {
+                done.await();
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for physics", e);
+            }
+        }
+        if( error.get() != null ) {
+            throw new RuntimeException("Error in physics task", error.get());
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     *  One stage of work over a contiguous range of bodies.
+     */
+    public interface RangeTask {
+        public void run( int partition, int start, int end );
+    }
+}
@@ -0,0 +1,776 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.material.Material;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.util.BufferUtils;
+import com.simsilica.iso.collision.Contact;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+
+/**
+ *  Simulates large numbers of simple ballistic projectiles against
+ *  the terrain.  Positions, velocities and energy are kept in parallel
+ *  primitive arrays and every projectile is moved in one pass over
+ *  them.  The terrain checks are then done in order of the terrain
+ *  chunk cell, and the density cache block within it, that each
+ *  projectile is in so that consecutive lookups mostly hit the same
+ *  block.
+ *
+ *  <p>Projectiles that come to rest go to sleep.  Sleeping projectiles
+ *  are not moved or checked against the terrain at all.  They wake up
+ *  when an awake projectile runs into them or when wake() is called for
+ *  their area, for example when the terrain there changes.  The chunk
+ *  cells with awake projectiles in them are the active cells and only
+ *  projectiles in active cells are checked against each other, through
+ *  a hash grid of cells the size of a projectile.</p>
+ *
+ *  <p>All of the projectiles are rendered as a single dynamic mesh of
+ *  small octahedra, one draw call no matter how many there are.</p>
+ *
+ *  <p>Projectile to projectile contacts are resolved first, on the
+ *  calling thread in index order, so that the terrain checks that
+ *  follow get the last word and a pushed projectile can't be left
+ *  inside the terrain.  With a PhysicsExecutor set, the terrain checks
+ *  are split into contiguous runs of that order and done in parallel.
+ *  Each projectile only depends on its own state and the terrain, so
+ *  the results are the same for any number of threads.</p>
+ *
+ *  <p>Projectiles fall with gravity, slide along the terrain with a
+ *  little friction, and are removed once they have been alive for too
+ *  long.  Must be used from one thread.</p>
+ */
+public class ProjectileSystem {
+
+    private static final int VERTS = 6;
+    private static final int INDEXES = 24;
+    private static final int[] OCTAHEDRON = {
+            0, 2, 4,  2, 1, 4,  1, 3, 4,  3, 0, 4,
+            2, 0, 5,  1, 2, 5,  3, 1, 5,  0, 3, 5
+        };
+
+    private final DensityCollider collider;
+    private float radius = 0.1f;
+    private float gravity = -2;
+    private float maxFallSpeed = 10;
+    private float friction = 0.99f;
+    private float maxAge = 100;
+    private float restEnergy = 0.1f;
+    private int maxSlides = 3;
+
+    // The broadphase cells, normally the terrain chunk grid
+    private float cellSizeX = 64;
+    private float cellSizeY = 32;
+    private float cellSizeZ = 64;
+    private float cellOffsetX;
+    private float cellOffsetY;
+    private float cellOffsetZ;
+
+    private int count;
+    private float[] posX;
+    private float[] posY;
+    private float[] posZ;
+    private float[] lastX;
+    private float[] lastY;
+    private float[] lastZ;
+    private float[] velX;
+    private float[] velY;
+    private float[] velZ;
+    private float[] energy;
+    private float[] age;
+    private boolean[] asleep;
+    private long[] order;
+    private int awakeCount;
+    private long[] activeCells;
+    private int activeCount;
+
+    // The hash grid for projectile to projectile checks
+    private long[] hashKeys;
+    private int[] hashHeads;
+    private int[] next;
+
+    private PhysicsExecutor executor;
+    private int minBatch = 256;
+    private Scratch[] scratch = { new Scratch() };
+    private final PhysicsExecutor.RangeTask collideTask = new PhysicsExecutor.RangeTask() {
+            @Override
+            public void run( int partition, int start, int end ) {
+                collide(scratch[partition], start, end);
+            }
+        };
+
+    private Mesh mesh;
+    private Geometry geom;
+    private FloatBuffer positions;
+    private int meshCapacity;
+    private int renderedCount;
+
+    private long lastUpdateNanos;
+    private int lastContacts;
+    private int lastPairs;
+
+    public ProjectileSystem( DensityCollider collider ) {
+        this(collider, 256);
+    }
+
+    public ProjectileSystem( DensityCollider collider, int initialCapacity ) {
+        this.collider = collider;
+        allocate(Math.max(1, initialCapacity));
+    }
+
+    public void setRadius( float radius ) {
+        this.radius = radius;
+    }
+
+    public float getRadius() {
+        return radius;
+    }
+
+    public void setGravity( float gravity ) {
+        this.gravity = gravity;
+    }
+
+    public float getGravity() {
+        return gravity;
+    }
+
+    /**
+     *  Sets how many seconds a projectile can live before it is
+     *  removed even if it is still moving.  Defaults to 100.
+     */
+    public void setMaxAge( float maxAge ) {
+        this.maxAge = maxAge;
+    }
+
+    public float getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     *  Sets the size of the broadphase cells.  These should be the
+     *  terrain chunk cells and default to 64x32x64.
+     */
+    public void setCellSize( float x, float y, float z ) {
+        this.cellSizeX = x;
+        this.cellSizeY = y;
+        this.cellSizeZ = z;
+    }
+
+    /**
+     *  Sets the world location of the corner of the broadphase
+     *  cell 0, 0, 0.
+     */
+    public void setCellOffset( float x, float y, float z ) {
+        this.cellOffsetX = x;
+        this.cellOffsetY = y;
+        this.cellOffsetZ = z;
+    }
+
+    /**
+     *  Sets the executor that the terrain checks are split across or
+     *  null to do them all on the calling thread.
+     */
+    public void setExecutor( PhysicsExecutor executor ) {
+        this.executor = executor;
+    }
+
+    public PhysicsExecutor getExecutor() {
+        return executor;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return posX.length;
+    }
+
+    /**
+     *  Returns the number of projectiles that were awake at the start
+     *  of the last update.
+     */
+    public int getAwakeCount() {
+        return awakeCount;
+    }
+
+    /**
+     *  Returns the number of broadphase cells that had awake
+     *  projectiles in them during the last update.
+     */
+    public int getActiveCellCount() {
+        return activeCount;
+    }
+
+    /**
+     *  Returns the number of projectile to projectile contacts
+     *  found during the last update.
+     */
+    public int getLastPairCount() {
+        return lastPairs;
+    }
+
+    public boolean isAsleep( int index ) {
+        return asleep[index];
+    }
+
+    /**
+     *  Returns how long the last update() took in nanoseconds.
+     */
+    public long getLastUpdateNanos() {
+        return lastUpdateNanos;
+    }
+
+    /**
+     *  Returns the number of projectiles touching the terrain during
+     *  the last update.
+     */
+    public int getLastContactCount() {
+        return lastContacts;
+    }
+
+    public float getX( int index ) {
+        return posX[index];
+    }
+
+    public float getY( int index ) {
+        return posY[index];
+    }
+
+    public float getZ( int index ) {
+        return posZ[index];
+    }
+
+    /**
+     *  Adds a projectile at the specified world location with the
+     *  specified velocity and returns its current index.  Indexes
+     *  change as projectiles are removed.
+     */
+    public int add( Vector3f pos, Vector3f velocity ) {
+        if( count == posX.length ) {
+            allocate(count * 2);
+        }
+        int i = count++;
+        posX[i] = lastX[i] = pos.x;
+        posY[i] = lastY[i] = pos.y;
+        posZ[i] = lastZ[i] = pos.z;
+        velX[i] = velocity.x;
+        velY[i] = velocity.y;
+        velZ[i] = velocity.z;
+        energy[i] = 100;
+        age[i] = 0;
+        asleep[i] = false;
+        return i;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    private void allocate( int capacity ) {
+        int size = posX == null ? 0 : count;
+        posX = copy(posX, capacity, size);
+        posY = copy(posY, capacity, size);
+        posZ = copy(posZ, capacity, size);
+        lastX = copy(lastX, capacity, size);
+        lastY = copy(lastY, capacity, size);
+        lastZ = copy(lastZ, capacity, size);
+        velX = copy(velX, capacity, size);
+        velY = copy(velY, capacity, size);
+        velZ = copy(velZ, capacity, size);
+        energy = copy(energy, capacity, size);
+        age = copy(age, capacity, size);
+        boolean[] flags = new boolean[capacity];
+        if( asleep != null ) {
+            System.arraycopy(asleep, 0, flags, 0, size);
+        }
+        asleep = flags;
+        order = new long[capacity];
+        activeCells = new long[capacity];
+        next = new int[capacity];
+    }
+
+    private static float[] copy( float[] array, int capacity, int size ) {
+        float[] result = new float[capacity];
+        if( array != null ) {
+            System.arraycopy(array, 0, result, 0, size);
+        }
+        return result;
+    }
+
+    /**
+     *  Wakes any sleeping projectiles within the specified world
+     *  bounds.  Call this when the terrain in that area changes.
+     */
+    public void wake( float minX, float minY, float minZ, float maxX, float maxY, float maxZ ) {
+        for( int i = 0; i < count; i++ ) {
+            if( asleep[i] && posX[i] >= minX && posY[i] >= minY && posZ[i] >= minZ
+                && posX[i] <= maxX && posY[i] <= maxY && posZ[i] <= maxZ ) {
+                wake(i);
+            }
+        }
+    }
+
+    protected void wake( int i ) {
+        asleep[i] = false;
+        energy[i] = 100;
+    }
+
+    protected void sleep( int i ) {
+        asleep[i] = true;
+        velX[i] = 0;
+        velY[i] = 0;
+        velZ[i] = 0;
+        lastX[i] = posX[i];
+        lastY[i] = posY[i];
+        lastZ[i] = posZ[i];
+    }
+
+    public void update( float tpf ) {
+        long start = System.nanoTime();
+        integrate(tpf);
+        collide();
+        compact();
+        lastUpdateNanos = System.nanoTime() - start;
+    }
+
+    /**
+     *  Moves every projectile without regard to the terrain.
+     */
+    protected void integrate( float tpf ) {
+        float dvy = gravity * tpf;
+        float minVy = -maxFallSpeed;
+        for( int i = 0; i < count; i++ ) {
+            age[i] += tpf;
+            if( asleep[i] ) {
+                continue;
+            }
+            lastX[i] = posX[i];
+            lastY[i] = posY[i];
+            lastZ[i] = posZ[i];
+            float vy = Math.max(minVy, velY[i] + dvy);
+            velY[i] = vy;
+            posX[i] += velX[i] * tpf;
+            posY[i] += vy * tpf;
+            posZ[i] += velZ[i] * tpf;
+        }
+    }
+
+    /**
+     *  Checks the awake projectiles against each other and then
+     *  against the terrain in order of the cell they are in.
+     */
+    protected void collide() {
+        // Collect the distinct active cells
+        int n = 0;
+        for( int i = 0; i < count; i++ ) {
+            if( !asleep[i] ) {
+                activeCells[n++] = cellKey(posX[i], posY[i], posZ[i]);
+            }
+        }
+        awakeCount = n;
+        Arrays.sort(activeCells, 0, n);
+        activeCount = 0;
+        for( int k = 0; k < n; k++ ) {
+            if( activeCount == 0 || activeCells[activeCount - 1] != activeCells[k] ) {
+                activeCells[activeCount++] = activeCells[k];
+            }
+        }
+
+        // Pushes can move projectiles into the terrain and wake
+        // sleeping ones so the terrain order is built afterwards.
+        // Sleepers have their last position at rest so the sweep
+        // covers the push.
+        lastPairs = n > 0 ? collidePairs() : 0;
+
+        n = 0;
+        for( int i = 0; i < count; i++ ) {
+            if( !asleep[i] ) {
+                order[n++] = cellKey(posX[i], posY[i], posZ[i]) << 33 | blockKey(i) << 24 | i;
+            }
+        }
+        Arrays.sort(order, 0, n);
+
+        if( executor == null ) {
+            collide(scratch[0], 0, n);
+        } else {
+            int partitions = executor.getPartitionCount(n, minBatch);
+            if( scratch.length < partitions ) {
+                Scratch[] array = new Scratch[partitions];
+                System.arraycopy(scratch, 0, array, 0, scratch.length);
+                for( int i = scratch.length; i < partitions; i++ ) {
+                    array[i] = new Scratch();
+                }
+                scratch = array;
+            }
+            executor.run(n, minBatch, collideTask);
+        }
+
+        int contacts = 0;
+        for( Scratch s : scratch ) {
+            contacts += s.contacts;
+            s.contacts = 0;
+        }
+        lastContacts = contacts;
+    }
+
+    /**
+     *  Returns the packed 30 bit key of the broadphase cell containing
+     *  the specified location.  Each axis keeps only the low 10 bits of
+     *  the cell index so cells 1024 cells apart share a key, 65536
+     *  units with the default cell size.  That only costs sort locality
+     *  and lets sleeping projectiles in the far cell join the pair
+     *  checks, which still gives the same results.
+     */
+    protected long cellKey( float x, float y, float z ) {
+        long cx = (long)Math.floor((x - cellOffsetX) / cellSizeX) & 0x3ff;
+        long cy = (long)Math.floor((y - cellOffsetY) / cellSizeY) & 0x3ff;
+        long cz = (long)Math.floor((z - cellOffsetZ) / cellSizeZ) & 0x3ff;
+        return cx << 20 | cy << 10 | cz;
+    }
+
+    /**
+     *  Returns a 9 bit key for the 16 unit density cache block
+     *  within the projectile's cell.
+     */
+    private long blockKey( int i ) {
+        long bx = ((int)Math.floor(posX[i]) >> 4) & 0x7;
+        long by = ((int)Math.floor(posY[i]) >> 4) & 0x7;
+        long bz = ((int)Math.floor(posZ[i]) >> 4) & 0x7;
+        return bx << 6 | by << 3 | bz;
+    }
+
+    private boolean isActive( long cell ) {
+        return Arrays.binarySearch(activeCells, 0, activeCount, cell) >= 0;
+    }
+
+    /**
+     *  Pushes apart the awake projectiles that overlap other
+     *  projectiles in the active cells, waking any sleeping ones they
+     *  touch.  Returns the number of overlapping pairs.
+     */
+    protected int collidePairs() {
+        float size = radius * 2;
+        float scale = 1 / size;
+
+        // Hash every projectile in an active cell by the projectile
+        // sized cell that it is in
+        int tableSize = Integer.highestOneBit(Math.max(16, count * 2)) * 2;
+        if( hashKeys == null || hashKeys.length < tableSize ) {
+            hashKeys = new long[tableSize];
+            hashHeads = new int[tableSize];
+        }
+        int mask = hashKeys.length - 1;
+        Arrays.fill(hashHeads, -1);
+        for( int i = 0; i < count; i++ ) {
+            if( asleep[i] && !isActive(cellKey(posX[i], posY[i], posZ[i])) ) {
+                continue;
+            }
+            long key = hashKey((int)Math.floor(posX[i] * scale),
+                               (int)Math.floor(posY[i] * scale),
+                               (int)Math.floor(posZ[i] * scale));
+            int slot = slot(key, mask);
+            if( hashHeads[slot] < 0 ) {
+                hashKeys[slot] = key;
+            }
+            next[i] = hashHeads[slot];
+            hashHeads[slot] = i;
+        }
+
+        int pairs = 0;
+        float minDistSq = size * size;
+        for( int i = 0; i < count; i++ ) {
+            if( asleep[i] ) {
+                continue;
+            }
+            int hx = (int)Math.floor(posX[i] * scale);
+            int hy = (int)Math.floor(posY[i] * scale);
+            int hz = (int)Math.floor(posZ[i] * scale);
+            for( int x = hx - 1; x <= hx + 1; x++ ) {
+                for( int y = hy - 1; y <= hy + 1; y++ ) {
+                    for( int z = hz - 1; z <= hz + 1; z++ ) {
+                        long key = hashKey(x, y, z);
+                        int slot = find(key, mask);
+                        for( int j = slot < 0 ? -1 : hashHeads[slot]; j >= 0; j = next[j] ) {
+                            // Awake pairs are only handled once
+                            if( j == i || (!asleep[j] && j < i) ) {
+                                continue;
+                            }
+                            float dx = posX[i] - posX[j];
+                            float dy = posY[i] - posY[j];
+                            float dz = posZ[i] - posZ[j];
+                            float distSq = dx * dx + dy * dy + dz * dz;
+                            if( distSq >= minDistSq ) {
+                                continue;
+                            }
+                            pairs++;
+                            if( asleep[j] ) {
+                                wake(j);
+                            }
+                            float dist = (float)Math.sqrt(distSq);
+                            if( dist == 0 ) {
+                                dx = 0;
+                                dy = 1;
+                                dz = 0;
+                                dist = 1;
+                            }
+                            float push = (size - (float)Math.sqrt(distSq)) * 0.5f / dist;
+                            posX[i] += dx * push;
+                            posY[i] += dy * push;
+                            posZ[i] += dz * push;
+                            posX[j] -= dx * push;
+                            posY[j] -= dy * push;
+                            posZ[j] -= dz * push;
+                        }
+                    }
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private static long hashKey( int x, int y, int z ) {
+        return ((long)x & 0x1fffff) << 42 | ((long)y & 0x1fffff) << 21 | ((long)z & 0x1fffff);
+    }
+
+    private int slot( long key, int mask ) {
+        int slot = (int)(key ^ (key >>> 29) ^ (key >>> 47)) * 0x9E3779B9 & mask;
+        while( hashHeads[slot] >= 0 && hashKeys[slot] != key ) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int find( long key, int mask ) {
+        int slot = slot(key, mask);
+        return hashHeads[slot] >= 0 ? slot : -1;
+    }
+
+    /**
+     *  Checks one contiguous run of the sorted order.  Only writes
+     *  to the projectiles in that run and to the scratch.
+     */
+    protected void collide( Scratch s, int start, int end ) {
+        Contact contact = s.contact;
+        Vector3f hit = s.hit;
+        for( int n = start; n < end; n++ ) {
+            int i = (int)(order[n] & 0xffffff);
+            s.from.set(lastX[i], lastY[i], lastZ[i]);
+            s.to.set(posX[i], posY[i], posZ[i]);
+
+            // Sweep from the last position so that fast projectiles
+            // don't pass through thin terrain, sliding along anything
+            // hit on the way like the WalkingMovementHandler does
+            boolean touching = false;
+            for( int slide = 0; slide < maxSlides; slide++ ) {
+                if( !collider.sweep(s.from, s.to, radius, contact, hit) ) {
+                    break;
+                }
+                touching = true;
+
+                // Push out of the ground and keep whatever is left of
+                // the movement and velocity that isn't into the ground
+                Vector3f normal = contact.contactNormal;
+                s.from.scaleAdd(contact.penetration, normal, hit);
+                s.to.subtractLocal(hit);
+                float into = s.to.dot(normal);
+                if( into < 0 ) {
+                    s.to.scaleAdd(-into, normal, s.to);
+                }
+                s.to.addLocal(s.from);
+
+                float vn = velX[i] * normal.x + velY[i] * normal.y + velZ[i] * normal.z;
+                if( vn < 0 ) {
+                    velX[i] -= vn * normal.x;
+                    velY[i] -= vn * normal.y;
+                    velZ[i] -= vn * normal.z;
+                }
+            }
+            if( !touching ) {
+                continue;
+            }
+            // One last discrete check where we ended up
+            if( collider.getContact(s.to, radius, contact) ) {
+                s.to.scaleAdd(contact.penetration, contact.contactNormal, s.to);
+            }
+            s.contacts++;
+            posX[i] = s.to.x;
+            posY[i] = s.to.y;
+            posZ[i] = s.to.z;
+
+            // Dampen velocity to simulate friction
+            velX[i] *= friction;
+            velY[i] *= friction;
+            velZ[i] *= friction;
+
+            // Distance moved in a single update
+            float dx = posX[i] - lastX[i];
+            float dy = posY[i] - lastY[i];
+            float dz = posZ[i] - lastZ[i];
+            float d = dx * dx + dy * dy + dz * dz;
+            if( d < 0.00001f ) {
+                energy[i] *= 0.9f;
+                if( energy[i] < restEnergy ) {
+                    sleep(i);
+                }
+            } else if( d > 0.0001f ) {
+                energy[i] = 100;
+            }
+        }
+    }
+
+    /**
+     *  Removes the projectiles that are too old while keeping the
+     *  rest in their original order.
+     */
+    protected void compact() {
+        int w = 0;
+        for( int i = 0; i < count; i++ ) {
+            if( age[i] > maxAge ) {
+                continue;
+            }
+            if( w != i ) {
+                posX[w] = posX[i];
+                posY[w] = posY[i];
+                posZ[w] = posZ[i];
+                lastX[w] = lastX[i];
+                lastY[w] = lastY[i];
+                lastZ[w] = lastZ[i];
+                velX[w] = velX[i];
+                velY[w] = velY[i];
+                velZ[w] = velZ[i];
+                energy[w] = energy[i];
+                age[w] = age[i];
+                asleep[w] = asleep[i];
+            }
+            w++;
+        }
+        count = w;
+    }
+
+    /**
+     *  Returns the geometry that renders all of the projectiles,
+     *  creating it with the specified material the first time.
+     */
+    public Geometry getGeometry( Material material ) {
+        if( geom == null ) {
+            mesh = new Mesh();
+            geom = new Geometry("projectiles", mesh);
+            geom.setMaterial(material);
+            resizeMesh(Math.max(posX.length, 64));
+        }
+        return geom;
+    }
+
+    private void resizeMesh( int capacity ) {
+        positions = BufferUtils.createFloatBuffer(capacity * VERTS * 3);
+        IntBuffer indexes = BufferUtils.createIntBuffer(capacity * INDEXES);
+        for( int i = 0; i < capacity; i++ ) {
+            int base = i * VERTS;
+            for( int index : OCTAHEDRON ) {
+                indexes.put(base + index);
+            }
+        }
+        indexes.flip();
+        mesh.setBuffer(Type.Position, 3, positions);
+        mesh.setBuffer(Type.Index, 3, indexes);
+        meshCapacity = capacity;
+        renderedCount = capacity;
+    }
+
+    /**
+     *  Writes the current projectile positions to the mesh.  Must be
+     *  called on the render thread after getGeometry().
+     */
+    public void updateGeometry() {
+        updateGeometry(1);
+    }
+
+    /**
+     *  Writes the projectile positions to the mesh, interpolated
+     *  by 'alpha' between the last two updates.
+     */
+    public void updateGeometry( float alpha ) {
+        if( geom == null ) {
+            return;
+        }
+        if( count > meshCapacity ) {
+            resizeMesh(Math.max(count, meshCapacity * 2));
+        }
+        float r = radius;
+        positions.clear();
+        for( int i = 0; i < count; i++ ) {
+            float x = lastX[i] + (posX[i] - lastX[i]) * alpha;
+            float y = lastY[i] + (posY[i] - lastY[i]) * alpha;
+            float z = lastZ[i] + (posZ[i] - lastZ[i]) * alpha;
+            positions.put(x + r).put(y).put(z);
+            positions.put(x - r).put(y).put(z);
+            positions.put(x).put(y).put(z + r);
+            positions.put(x).put(y).put(z - r);
+            positions.put(x).put(y + r).put(z);
+            positions.put(x).put(y - r).put(z);
+        }
+        // Collapse the slots that were used last time but aren't now
+        for( int i = count; i < renderedCount; i++ ) {
+            for( int v = 0; v < VERTS * 3; v++ ) {
+                positions.put(0);
+            }
+        }
+        renderedCount = count;
+        positions.clear();
+        mesh.getBuffer(Type.Position).updateData(positions);
+        mesh.updateBound();
+        geom.updateModelBound();
+    }
+
+    /**
+     *  Per-partition scratch objects for the terrain checks.
+     */
+    private static class Scratch {
+        final Contact contact = new Contact();
+        final Vector3f from = new Vector3f();
+        final Vector3f to = new Vector3f();
+        final Vector3f hit = new Vector3f();
+        int contacts;
+    }
+}
@@ -98,6 +98,9 @@ public class SettingsPanelState extends BaseAppState {
 
         TerrainState terrain = getState(TerrainState.class);
         getParameterTabs().addTab("Ground", terrain.getSettings());                        
+
+        ZoneBuilderState builder = getState(ZoneBuilderState.class);
+        getParameterTabs().addTab("Builder", builder.getSettings());
     }
 
     @Override
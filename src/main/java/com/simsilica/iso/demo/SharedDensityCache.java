@@ -0,0 +1,428 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.math.Vector3f;
+import com.simsilica.iso.DensityVolume;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  An application-wide cache of density samples that can be shared
+ *  by the colliders on the update thread and by the terrain builder
+ *  threads.  Samples are cached in cubic blocks of integer lattice
+ *  samples.  Each block has a one sample border on its positive sides,
+ *  so the trilinear interpolation for non-integer locations never
+ *  crosses into another block.
+ *
+ *  <p>The blocks are spread over a number of independently locked
+ *  stripes, each an LRU map of its share of the total capacity.  Each
+ *  thread also remembers the last block it used, which is what most
+ *  lookups hit.  A missing block is sampled outside of any lock, so two
+ *  threads might sample the same block at the same time; only one of
+ *  them is kept.</p>
+ *
+ *  <p>When a chunk grid pool is set, missing blocks are first copied
+ *  from the sample grids the terrain builders have already taken and
+ *  only sampled from the source when no pooled grids cover them.</p>
+ *
+ *  <p>Hits and misses count the lookups that got past the per-thread
+ *  last block.  Builder reads through the read-through view count hits
+ *  but not misses since they never add to the cache.</p>
+ */
+public class SharedDensityCache implements BlockDensityVolume {
+
+    private final DensityVolume source;
+    private final int bits;
+    private final int size;
+    private final int span;
+    private final Stripe[] stripes;
+    private volatile ChunkGridPool gridPool;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final ThreadLocal<Block[]> lastBlock = new ThreadLocal<Block[]>() {
+            @Override
+            protected Block[] initialValue() {
+                return new Block[1];
+            }
+        };
+
+    private final ThreadLocal<float[]> scratch = new ThreadLocal<float[]>();
+
+    /**
+     *  Creates a cache of 16x16x16 sample blocks over the specified
+     *  volume that holds up to 'capacity' blocks.
+     */
+    public SharedDensityCache( DensityVolume source, int capacity ) {
+        this(source, capacity, 4, 16);
+    }
+
+    /**
+     *  Creates a cache over the specified volume that holds up to
+     *  'capacity' blocks of 2^blockBits samples on a side, spread over
+     *  the specified number of lock stripes.
+     */
+    public SharedDensityCache( DensityVolume source, int capacity, int blockBits, int stripeCount ) {
+        this.source = source;
+        this.bits = blockBits;
+        this.size = 1 << blockBits;
+        this.span = size + 1;
+        this.stripes = new Stripe[stripeCount];
+        int perStripe = Math.max(1, capacity / stripeCount);
+        for( int i = 0; i < stripeCount; i++ ) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    public DensityVolume getSource() {
+        return source;
+    }
+
+    /**
+     *  Sets the pool of already sampled chunk grids that missing blocks
+     *  are copied from when possible.  The grids must have been sampled
+     *  from this cache's source volume.
+     */
+    public void setGridPool( ChunkGridPool gridPool ) {
+        this.gridPool = gridPool;
+    }
+
+    public ChunkGridPool getGridPool() {
+        return gridPool;
+    }
+
+    /**
+     *  Returns the number of samples on a side of each cached block.
+     */
+    public int getBlockSize() {
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     *  Returns the fraction of block lookups that found their block
+     *  already in the cache.
+     */
+    public double getHitRate() {
+        double h = hits.get();
+        double total = h + misses.get();
+        return total == 0 ? 0 : h / total;
+    }
+
+    /**
+     *  Returns the number of blocks currently cached.
+     */
+    public int getBlockCount() {
+        int result = 0;
+        for( Stripe s : stripes ) {
+            synchronized( s ) {
+                result += s.blocks.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  Returns the approximate heap used by the cached blocks in bytes.
+     */
+    public long getEstimatedBytes() {
+        return (long)getBlockCount() * span * span * span * 4;
+    }
+
+    @Override
+    public float getDensity( int x, int y, int z ) {
+        Block b = getBlock(x >> bits, y >> bits, z >> bits);
+        return b.data[index(x - b.x, y - b.y, z - b.z)];
+    }
+
+    @Override
+    public float getDensity( float x, float y, float z ) {
+        int ix = (int)Math.floor(x);
+        int iy = (int)Math.floor(y);
+        int iz = (int)Math.floor(z);
+        Block b = getBlock(ix >> bits, iy >> bits, iz >> bits);
+        float fx = x - ix;
+        float fy = y - iy;
+        float fz = z - iz;
+        int i = index(ix - b.x, iy - b.y, iz - b.z);
+        float[] d = b.data;
+        int dy = span;
+        int dz = span * span;
+        float x00 = d[i] + (d[i + 1] - d[i]) * fx;
+        float x10 = d[i + dy] + (d[i + dy + 1] - d[i + dy]) * fx;
+        float x01 = d[i + dz] + (d[i + dz + 1] - d[i + dz]) * fx;
+        float x11 = d[i + dz + dy] + (d[i + dz + dy + 1] - d[i + dz + dy]) * fx;
+        float y0 = x00 + (x10 - x00) * fy;
+        float y1 = x01 + (x11 - x01) * fy;
+        return y0 + (y1 - y0) * fz;
+    }
+
+    @Override
+    public Vector3f getFieldDirection( float x, float y, float z, Vector3f target ) {
+        return source.getFieldDirection(x, y, z, target);
+    }
+
+    /**
+     *  Fills the block of samples from the cache, sampling and caching
+     *  any cache blocks that are missing.
+     */
+    @Override
+    public void getDensities( int x, int y, int z, int sizeX, int sizeY, int sizeZ,
+                              float[] target, int offset ) {
+        copy(x, y, z, sizeX, sizeY, sizeZ, target, offset, null);
+    }
+
+    /**
+     *  Returns a block sampling view of this cache for the terrain
+     *  builder threads.  Parts of a block that are already cached are
+     *  copied from the cache and everything else comes from the
+     *  fallback volume without being added to the cache.  This keeps the
+     *  paging terrain from flushing the blocks the colliders are using.
+     */
+    public BlockDensityVolume createReadThroughView( DensityVolume fallback ) {
+        return new ReadThroughView(fallback);
+    }
+
+    private void copy( int x, int y, int z, int sizeX, int sizeY, int sizeZ,
+                       float[] target, int offset, DensityVolume fallback ) {
+        int xEnd = x + sizeX - 1;
+        int yEnd = y + sizeY - 1;
+        int zEnd = z + sizeZ - 1;
+        for( int bz = z >> bits; bz <= zEnd >> bits; bz++ ) {
+            int z0 = Math.max(z, bz << bits);
+            int z1 = Math.min(zEnd, (bz << bits) + size - 1);
+            for( int by = y >> bits; by <= yEnd >> bits; by++ ) {
+                int y0 = Math.max(y, by << bits);
+                int y1 = Math.min(yEnd, (by << bits) + size - 1);
+                for( int bx = x >> bits; bx <= xEnd >> bits; bx++ ) {
+                    int x0 = Math.max(x, bx << bits);
+                    int x1 = Math.min(xEnd, (bx << bits) + size - 1);
+
+                    float[] data;
+                    int dataX;
+                    int dataY;
+                    int dataZ;
+                    int dataSpanX;
+                    int dataSpanY;
+                    Block b = fallback == null ? getBlock(bx, by, bz) : peekBlock(bx, by, bz);
+                    if( b != null ) {
+                        data = b.data;
+                        dataX = b.x;
+                        dataY = b.y;
+                        dataZ = b.z;
+                        dataSpanX = span;
+                        dataSpanY = span;
+                    } else {
+                        // Sample just the overlapping part from the fallback
+                        dataSpanX = x1 - x0 + 1;
+                        dataSpanY = y1 - y0 + 1;
+                        data = getScratch(dataSpanX * dataSpanY * (z1 - z0 + 1));
+                        DensityBlocks.fill(fallback, x0, y0, z0, dataSpanX, dataSpanY, z1 - z0 + 1, data, 0);
+                        dataX = x0;
+                        dataY = y0;
+                        dataZ = z0;
+                    }
+
+                    for( int k = z0; k <= z1; k++ ) {
+                        for( int j = y0; j <= y1; j++ ) {
+                            int src = ((k - dataZ) * dataSpanY + (j - dataY)) * dataSpanX + (x0 - dataX);
+                            int dst = offset + ((k - z) * sizeY + (j - y)) * sizeX + (x0 - x);
+                            System.arraycopy(data, src, target, dst, x1 - x0 + 1);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private float[] getScratch( int length ) {
+        float[] result = scratch.get();
+        if( result == null || result.length < length ) {
+            result = new float[Math.max(length, size * size * size)];
+            scratch.set(result);
+        }
+        return result;
+    }
+
+    private int index( int i, int j, int k ) {
+        return (k * span + j) * span + i;
+    }
+
+    private static long key( int bx, int by, int bz ) {
+        return ((long)(bx & 0x1fffff) << 42) | ((long)(by & 0x1fffff) << 21) | (bz & 0x1fffff);
+    }
+
+    private Stripe stripe( long key ) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return stripes[(int)(h >>> 40) % stripes.length];
+    }
+
+    /**
+     *  Returns the cached block if there is one, without sampling it
+     *  if there isn't.
+     */
+    protected Block peekBlock( int bx, int by, int bz ) {
+        long key = key(bx, by, bz);
+        Stripe stripe = stripe(key);
+        Block b;
+        synchronized( stripe ) {
+            b = stripe.blocks.get(key);
+        }
+        if( b != null ) {
+            hits.incrementAndGet();
+        }
+        return b;
+    }
+
+    protected Block getBlock( int bx, int by, int bz ) {
+        Block[] last = lastBlock.get();
+        Block b = last[0];
+        if( b != null && b.bx == bx && b.by == by && b.bz == bz ) {
+            return b;
+        }
+
+        long key = key(bx, by, bz);
+        Stripe stripe = stripe(key);
+        synchronized( stripe ) {
+            b = stripe.blocks.get(key);
+        }
+        if( b != null ) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+
+            // Copy or sample it outside of the lock
+            b = new Block(bx, by, bz);
+            ChunkGridPool pool = gridPool;
+            if( pool == null || !pool.fill(b.x, b.y, b.z, span, span, span, b.data, 0) ) {
+                DensityBlocks.fill(source, b.x, b.y, b.z, span, span, span, b.data, 0);
+            }
+            synchronized( stripe ) {
+                Block existing = stripe.blocks.get(key);
+                if( existing != null ) {
+                    b = existing;
+                } else {
+                    stripe.blocks.put(key, b);
+                }
+            }
+        }
+        last[0] = b;
+        return b;
+    }
+
+    protected class Block {
+        final int bx;
+        final int by;
+        final int bz;
+        final int x;
+        final int y;
+        final int z;
+        final float[] data;
+
+        public Block( int bx, int by, int bz ) {
+            this.bx = bx;
+            this.by = by;
+            this.bz = bz;
+            this.x = bx << bits;
+            this.y = by << bits;
+            this.z = bz << bits;
+            this.data = new float[span * span * span];
+        }
+    }
+
+    private class Stripe {
+        final Map<Long, Block> blocks;
+
+        public Stripe( final int capacity ) {
+            this.blocks = new LinkedHashMap<Long, Block>(capacity, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry( Map.Entry<Long, Block> eldest ) {
+                        if( size() > capacity ) {
+                            evictions.incrementAndGet();
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+        }
+    }
+
+    private class ReadThroughView implements BlockDensityVolume {
+        private final DensityVolume fallback;
+
+        public ReadThroughView( DensityVolume fallback ) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        public float getDensity( int x, int y, int z ) {
+            return fallback.getDensity(x, y, z);
+        }
+
+        @Override
+        public float getDensity( float x, float y, float z ) {
+            return fallback.getDensity(x, y, z);
+        }
+
+        @Override
+        public Vector3f getFieldDirection( float x, float y, float z, Vector3f target ) {
+            return fallback.getFieldDirection(x, y, z, target);
+        }
+
+        @Override
+        public void getDensities( int x, int y, int z, int sizeX, int sizeY, int sizeZ,
+                                  float[] target, int offset ) {
+            copy(x, y, z, sizeX, sizeY, sizeZ, target, offset, fallback);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import com.simsilica.iso.DensityVolume;
+import com.simsilica.iso.mc.MarchingCubesMeshGenerator;
+import com.simsilica.iso.volume.ArrayDensityVolume;
+import java.io.IOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  The marching cubes mesh generator used for the terrain chunks.
+ *  This is the hook through which the demo observes the chunks being
+ *  built on the background threads.  When the chunks are sampled
+ *  through a ChunkSamplingVolume with a mesh cache then previously
+ *  generated meshes are loaded from the cache instead of being
+ *  regenerated and newly generated meshes are added to it.  Chunks
+ *  that the sampling volume classified as all air or all solid skip
+ *  marching cubes.  Chunks whose zone has been released are
+ *  cancelled before the mesh is built.  With a DirectBufferPool set,
+ *  skirted or welded meshes are written into pooled buffers.  With a skirt depth
+ *  set, generated meshes get skirts along their x and z sides to hide
+ *  the cracks where they meet coarser or finer chunks.  With welding on,
+ *  generated meshes have their duplicate vertices welded and their
+ *  indices compacted before they are cached.
+ *  Like the base class, it keeps non-thread-safe book-keeping and
+ *  so must be used one per thread.
+ */
+public class TerrainMeshGenerator extends MarchingCubesMeshGenerator {
+
+    static Logger log = LoggerFactory.getLogger(TerrainMeshGenerator.class);
+
+    /**
+     *  What marching cubes returns for a chunk without any surface,
+     *  null or an empty mesh.  Null until we've seen one.
+     */
+    private static volatile Boolean emptyIsNull;
+
+    private final ChunkBuildStats stats;
+    private final ChunkSamplingVolume sampler;
+    private DirectBufferPool bufferPool;
+    private MeshWelder welder;
+    private ChunkSkirts skirts;
+    private final float sizeX;
+    private final float sizeZ;
+
+    public TerrainMeshGenerator( int cx, int cy, int cz, float xzScale, ChunkBuildStats stats ) {
+        this(cx, cy, cz, xzScale, stats, null);
+    }
+
+    public TerrainMeshGenerator( int cx, int cy, int cz, float xzScale, ChunkBuildStats stats,
+                                 ChunkSamplingVolume sampler ) {
+        super(cx, cy, cz, xzScale);
+        this.stats = stats;
+        this.sampler = sampler;
+        this.sizeX = cx * xzScale;
+        this.sizeZ = cz * xzScale;
+    }
+
+    /**
+     *  Sets the pool that newly generated meshes are moved into so
+     *  that their buffers can be recycled when their zone is released.
+     */
+    public void setBufferPool( DirectBufferPool bufferPool ) {
+        this.bufferPool = bufferPool;
+    }
+
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     *  Turns on or off welding of the generated meshes' duplicate
+     *  vertices.  Cached meshes are stored as generated so the mesh
+     *  cache key should include this setting.
+     */
+    public void setWeldVertices( boolean weld ) {
+        this.welder = weld ? new MeshWelder() : null;
+    }
+
+    public boolean getWeldVertices() {
+        return welder != null;
+    }
+
+    /**
+     *  Sets how far the skirts along the chunk's x and z sides hang
+     *  down, or 0 for no skirts.  Cached meshes include their skirts
+     *  so the mesh cache key should include this setting.
+     */
+    public void setSkirtDepth( float depth ) {
+        this.skirts = depth > 0 ? new ChunkSkirts(sizeX, sizeZ, depth) : null;
+    }
+
+    public float getSkirtDepth() {
+        return skirts != null ? skirts.getDepth() : 0;
+    }
+
+    @Override
+    public Mesh buildMesh( DensityVolume volume ) {
+        long start = System.nanoTime();
+        ChunkSamplingVolume.Chunk chunk = sampler != null ? sampler.getCurrentChunk() : null;
+        try {
+            // Drop stale work before any mesh buffers are allocated.
+            // The chunk is still ended below.
+            ZoneBuilder.checkCancelled();
+            MeshCache cache = sampler != null ? sampler.getMeshCache() : null;
+            if( chunk != null && chunk.isCached() ) {
+                DirectBufferPool.Allocation allocation = createAllocation();
+                try {
+                    Mesh mesh = cache.load(chunk.getX(), chunk.getY(), chunk.getZ(), allocation);
+                    if( allocation != null ) {
+                        if( mesh != null ) {
+                            bufferPool.register(mesh, allocation);
+                        } else {
+                            allocation.release();
+                        }
+                    }
+                    if( stats != null ) {
+                        stats.chunkLoaded(System.nanoTime() - start, mesh);
+                    }
+                    recordEvent(mesh);
+                    return mesh;
+                } catch( IOException e ) {
+                    if( allocation != null ) {
+                        allocation.release();
+                    }
+                    log.warn("Error loading cached chunk:" + chunk + ", regenerating", e);
+                    if( !(volume instanceof ArrayDensityVolume) ) {
+                        return null;
+                    }
+                    // The samples we were given are not real so we need
+                    // to take them again
+                    ((ArrayDensityVolume)volume).extract(sampler.getDelegate(),
+                                                         chunk.getX(), chunk.getY(), chunk.getZ());
+                }
+            }
+
+            if( chunk != null && chunk.isUniform() ) {
+                // All air or all solid so there is no surface.  If we
+                // know that marching cubes returns null for that then we
+                // can skip it entirely.  Otherwise it's cheap to run over
+                // the constant samples anyway.
+                Mesh mesh = emptyIsNull == Boolean.TRUE ? null : super.buildMesh(volume);
+                if( stats != null ) {
+                    stats.chunkSkipped(System.nanoTime() - start, mesh);
+                }
+                recordEvent(mesh);
+                return mesh;
+            }
+
+            Mesh mesh = super.buildMesh(volume);
+            if( emptyIsNull == null ) {
+                if( mesh == null ) {
+                    emptyIsNull = Boolean.TRUE;
+                } else if( mesh.getTriangleCount() == 0 ) {
+                    emptyIsNull = Boolean.FALSE;
+                }
+            }
+            // Skirting and welding each write a new mesh, into pooled
+            // buffers when there is a pool.  Without either the mesh
+            // keeps the generator's own buffers and isn't pooled since
+            // copying it into the pool would only add work.
+            DirectBufferPool.Allocation allocation = null;
+            if( skirts != null && mesh != null && mesh.getTriangleCount() > 0 ) {
+                DirectBufferPool.Allocation next = createAllocation();
+                Mesh skirted = skirts.addSkirts(mesh, next);
+                if( skirted != mesh ) {
+                    free(mesh, allocation);
+                    mesh = skirted;
+                    allocation = next;
+                } else if( next != null ) {
+                    next.release();
+                }
+            }
+            if( welder != null && mesh != null && mesh.getTriangleCount() > 0 ) {
+                DirectBufferPool.Allocation next = createAllocation();
+                Mesh welded = welder.weld(mesh, next);
+                if( welded != mesh ) {
+                    if( stats != null ) {
+                        stats.chunkWelded(mesh.getVertexCount(), welded.getVertexCount());
+                    }
+                    free(mesh, allocation);
+                    mesh = welded;
+                    allocation = next;
+                } else if( next != null ) {
+                    next.release();
+                }
+            }
+            if( chunk != null && cache != null ) {
+                cache.store(chunk.getX(), chunk.getY(), chunk.getZ(), mesh);
+            }
+            if( allocation != null ) {
+                bufferPool.register(mesh, allocation);
+            }
+            if( stats != null ) {
+                stats.chunkBuilt(System.nanoTime() - start, mesh);
+            }
+            recordEvent(mesh);
+            return mesh;
+        } finally {
+            if( sampler != null ) {
+                sampler.endChunk();
+            }
+        }
+    }
+
+    private DirectBufferPool.Allocation createAllocation() {
+        return bufferPool != null ? bufferPool.createAllocation() : null;
+    }
+
+    /**
+     *  Frees the buffers of an intermediate mesh, back to the pool if
+     *  they came from the allocation.  The generator's own buffers are
+     *  only ours to free so they are destroyed.
+     */
+    private void free( Mesh mesh, DirectBufferPool.Allocation allocation ) {
+        if( allocation != null ) {
+            allocation.release();
+            return;
+        }
+        for( VertexBuffer vb : mesh.getBufferList() ) {
+            BufferUtils.destroyDirectBuffer(vb.getData());
+        }
+    }
+
+    private void recordEvent( Mesh mesh ) {
+        if( !ZoneEvents.isEnabled() ) {
+            return;
+        }
+        ZoneEvents.recordMesh("TerrainMesh", mesh);
+    }
+}
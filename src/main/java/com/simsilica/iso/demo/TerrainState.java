@@ -51,7 +51,6 @@ import com.jme3.scene.SceneGraphVisitorAdapter;
 import com.jme3.texture.Texture;
 import com.jme3.texture.Texture.WrapMode;
 import com.simsilica.builder.Builder;
-import com.simsilica.builder.BuilderState;
 import com.simsilica.fx.sky.AtmosphericParameters;
 import com.simsilica.fx.sky.SkyState;
 import com.simsilica.iso.DensityVolume;
@@ -72,7 +71,10 @@ import com.simsilica.pager.Grid;
 import com.simsilica.pager.PagedGrid;
 import com.simsilica.pager.ZoneFactory;
 import com.simsilica.pager.debug.BBoxZone;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 
@@ -86,6 +88,12 @@ public class TerrainState extends BaseAppState {
 
     public static final int CHUNK_SIZE_XZ = 64;
     public static final int CHUNK_SIZE_Y = 32;
+
+    /**
+     *  The y offset of the terrain grids.  It's a magic number arrived
+     *  at visually.
+     */
+    public static final int Y_BASE = -42;
      
     /**
      *  The root level terrain pager that constructs the land geometry
@@ -105,6 +113,28 @@ public class TerrainState extends BaseAppState {
      */
     private DensityVolume worldVolume;
 
+    /**
+     *  A cache of world volume samples shared by everything that
+     *  samples the unscaled world: colliders, projectiles, and the full
+     *  resolution terrain builders.
+     */
+    private SharedDensityCache densityCache;
+
+    /**
+     *  The sample grids of the full resolution chunks nearest the camera,
+     *  kept after building so that the density cache can copy instead of
+     *  resampling them.  Set the terrain.gridPool.chunks system property
+     *  to 0 to turn it off.
+     */
+    private ChunkGridPool gridPool;
+
+    /**
+     *  The direct buffers of generated terrain meshes, recycled when
+     *  their zones are released.  The terrain.bufferPool.mb system
+     *  property sets the most free buffer memory kept, 0 turns it off.
+     */
+    private DirectBufferPool bufferPool;
+
     /**
      *  Materials that are based on world space can use
      *  this to determine what the _actual_ world space is rather than
@@ -127,8 +157,82 @@ public class TerrainState extends BaseAppState {
     private PropertyPanel settings;
     private boolean useScattering;
 
+    /**
+     *  The movement handler that moves the land under the camera.
+     */
+    private MovementHandler landMover;
+
+    /**
+     *  Running totals for the terrain chunks generated by the
+     *  background builder.
+     */
+    private ChunkBuildStats chunkStats = new ChunkBuildStats();
+
+    /**
+     *  Finished chunk meshes are kept on disk so that revisited
+     *  (or re-run) areas don't need to be regenerated.  Set the
+     *  terrain.cache system property to false to turn it off.
+     */
+    private boolean useMeshCache = Boolean.parseBoolean(System.getProperty("terrain.cache", "true"));
+    private File meshCacheRoot = new File(System.getProperty("terrain.cache.dir",
+                                          System.getProperty("user.home") + "/.isosurface/chunk-cache"));
+    /**
+     *  The most disk space each of the land's and rings' chunk caches
+     *  may use, in megabytes.  Set with the terrain.cache.mb system
+     *  property.
+     */
+    private long meshCacheBytes = Long.getLong("terrain.cache.mb", 256) * 1024 * 1024;
+    private MeshCache meshCache;
+
+    /**
+     *  When true, chunk blocks are sampled through an
+     *  InterpolatingDensityVolume that only evaluates the fractal near
+     *  the surface.  Set with the terrain.interpolate system property.
+     */
+    private boolean useInterpolation = Boolean.getBoolean("terrain.interpolate");
+
+    /**
+     *  Set to false with the terrain.weld system property to keep the
+     *  terrain meshes exactly as marching cubes generates them, without
+     *  welding their duplicate vertices.
+     */
+    private boolean weldVertices = Boolean.parseBoolean(System.getProperty("terrain.weld", "true"));
+
+    /**
+     *  The noise fields shared by the plotting zone factories.
+     */
+    private NoiseFields noiseFields;
+
+    /**
+     *  The number of coarser terrain rings to page beyond the full
+     *  resolution land.  Each ring doubles the xz scale of the one
+     *  before it and so covers roughly twice the distance for the same
+     *  number of chunks.
+     */
+    private int lodRings = 3;
+    private List<PagedGrid> lodPagers = new ArrayList<PagedGrid>();
+    private LodRingCoverage lodCoverage;
+
+    /**
+     *  How far the chunk skirts hang down, in meters per unit of
+     *  the next coarser ring's xz scale.  The skirts hide the cracks
+     *  where the rings meet.  Set with the terrain.skirtDepth system
+     *  property.
+     */
+    private float skirtDepth = Float.parseFloat(System.getProperty("terrain.skirtDepth", "1"));
+
     public TerrainState() {
         this.worldVolume = new GemsFractalDensityVolume();
+        this.densityCache = new SharedDensityCache(worldVolume, 
+                                                   Integer.getInteger("terrain.densityCache.blocks", 512));
+        int gridChunks = Integer.getInteger("terrain.gridPool.chunks", 36);
+        if( gridChunks > 0 ) {
+            this.gridPool = new ChunkGridPool(gridChunks);
+        }
+        int bufferMegs = Integer.getInteger("terrain.bufferPool.mb", 64);
+        if( bufferMegs > 0 ) {
+            this.bufferPool = new DirectBufferPool(bufferMegs * 1024L * 1024L);
+        }
     }
 
     public PropertyPanel getSettings() {
@@ -154,6 +258,121 @@ public class TerrainState extends BaseAppState {
     public DensityVolume getWorldVolume() {
         return worldVolume;
     }
+
+    /**
+     *  Returns the application-wide cache of world volume samples.
+     *  Colliders should sample this rather than the world volume
+     *  directly.
+     */
+    public SharedDensityCache getDensityCache() {
+        return densityCache;
+    }
+
+    /**
+     *  Returns the pool of full resolution chunk sample grids or null
+     *  if there isn't one.
+     */
+    public ChunkGridPool getGridPool() {
+        return gridPool;
+    }
+
+    /**
+     *  Returns the pool of terrain mesh buffers or null if there
+     *  isn't one.
+     */
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     *  Returns the grid of the full resolution terrain chunks.
+     */
+    public Grid getRootGrid() {
+        return rootGrid;
+    }
+
+    public PagedGrid getPager() {
+        return pager;
+    }
+
+    /**
+     *  Returns the movement handler that pages the land around
+     *  the camera.  This is what the MovementState is given during
+     *  initialization but it can also be driven directly when there
+     *  is no MovementState, for example when running headless.
+     */
+    public MovementHandler getLandMovementHandler() {
+        return landMover;
+    }
+
+    public ChunkBuildStats getChunkStats() {
+        return chunkStats;
+    }
+
+    /**
+     *  Sets whether the terrain chunks are cached on disk.  This
+     *  must be set before the state is initialized.
+     */
+    public void setUseMeshCache( boolean b ) {
+        this.useMeshCache = b;
+    }
+
+    public boolean getUseMeshCache() {
+        return useMeshCache;
+    }
+
+    /**
+     *  Sets whether chunk blocks only evaluate the fractal near the
+     *  surface and interpolate elsewhere.  This must be set before the
+     *  state is initialized.
+     */
+    public void setUseInterpolation( boolean b ) {
+        this.useInterpolation = b;
+    }
+
+    public boolean getUseInterpolation() {
+        return useInterpolation;
+    }
+
+    public void setMeshCacheRoot( File meshCacheRoot ) {
+        this.meshCacheRoot = meshCacheRoot;
+    }
+
+    public File getMeshCacheRoot() {
+        return meshCacheRoot;
+    }
+
+    /**
+     *  Sets the number of coarser terrain rings paged beyond the
+     *  full resolution land.  This must be set before the state is
+     *  initialized.
+     */
+    public void setLodRings( int lodRings ) {
+        this.lodRings = lodRings;
+    }
+
+    public int getLodRings() {
+        return lodRings;
+    }
+
+    /**
+     *  Returns the pagers for the coarser terrain rings, nearest first.
+     */
+    public List<PagedGrid> getLodPagers() {
+        return lodPagers;
+    }
+
+    public NoiseFields getNoiseFields() {
+        return noiseFields;
+    }
+
+    /**
+     *  Returns the on-disk chunk mesh cache or null if the mesh
+     *  cache is not being used.
+     */
+    public MeshCache getMeshCache() {
+        return meshCache;
+    }
     
     protected void resetAtmospherics() {
         terrainMaterial.setBoolean("UseScattering", useScattering);
@@ -168,11 +387,16 @@ public class TerrainState extends BaseAppState {
         // Create the root node that we'll attach everything to
         // for convenient add/remove
         land = new Node("Terrain");
+
+        // The grass, trees, etc. all plot from the same noise so
+        // decode it only once
+        noiseFields = new NoiseFields(app.getAssetManager());
  
         // Grab the builder from the builder state
         // The builder will build the pager's zones on a background thread and
         // apply them on the update thread.
-        Builder builder = getState(BuilderState.class).getBuilder();
+        ZoneBuilder builder = getState(ZoneBuilderState.class).getBuilder();
+        builder.setBufferPool(bufferPool);
         
         // Setup the grid size information based on
         // the trunk size and a potential xz scaling.
@@ -209,9 +433,8 @@ public class TerrainState extends BaseAppState {
         int yLayers = (yEnd - yStart) / cy;       
  
         // Our terrain will eventually be generated such that we want to
-        // offset it down by 42 meters.  It's a magic number arrived at
-        // visually.
-        int yBase = -42;
+        // offset it down by 42 meters.
+        int yBase = Y_BASE;
 
         // Now we have enough to create our grid model.
         // The first parameter is the grid spacing in x,y,z.  The second one
@@ -243,6 +466,37 @@ public class TerrainState extends BaseAppState {
             // amount of work.       
             volume = new ResamplingVolume(new Vector3f(xzScale, 1, xzScale), volume);
         }
+        if( useInterpolation ) {
+            volume = new InterpolatingDensityVolume(volume);
+        }
+        if( xzScale == 1 ) {
+            // The full resolution land can reuse whatever the colliders
+            // have already cached without adding to it.
+            volume = densityCache.createReadThroughView(volume);
+        }
+ 
+        // The zones sample their chunks through a front that lets the
+        // mesh generators know which chunk is being built.  That's what
+        // lets us cache the meshes by chunk.
+        Vector3f blockSize = new MarchingCubesMeshGenerator(cx, cy, cz, xzScale).getRequiredVolumeSize();
+        final ChunkSamplingVolume chunkVolume = new ChunkSamplingVolume(volume, blockSize,
+                                                                        new Vector3f(cx, cy, cz), xzScale);
+        if( useMeshCache ) {
+            // Anything that changes the generated meshes needs to be
+            // part of the key.
+            String key = MeshCache.createKey(worldVolume.getClass().getName(),
+                                             cx, cy, cz, xzScale, yBase, useInterpolation,
+                                             weldVertices, getSkirtDepth(xzScale));
+            meshCache = new MeshCache(meshCacheRoot, key, meshCacheBytes);
+            chunkVolume.setMeshCache(meshCache);
+        }
+        if( xzScale == 1 && gridPool != null && !useInterpolation ) {
+            // Hand the exact full resolution samples to the colliders.
+            // Interpolated blocks are only approximate away from the
+            // surface so those are left out.
+            chunkVolume.setGridPool(gridPool);
+            densityCache.setGridPool(gridPool);
+        }
         
  
         // And a mesh generator.
@@ -255,10 +509,16 @@ public class TerrainState extends BaseAppState {
                 private ThreadLocal<MarchingCubesMeshGenerator> generator = new ThreadLocal() {
                         @Override 
                         protected MarchingCubesMeshGenerator initialValue() {
-                            return new MarchingCubesMeshGenerator( CHUNK_SIZE_XZ, 
-                                                               CHUNK_SIZE_Y, 
-                                                               CHUNK_SIZE_XZ,
-                                                               xzScale );
+                            TerrainMeshGenerator result = new TerrainMeshGenerator( CHUNK_SIZE_XZ, 
+                                                                                    CHUNK_SIZE_Y, 
+                                                                                    CHUNK_SIZE_XZ,
+                                                                                    xzScale,
+                                                                                    chunkStats,
+                                                                                    chunkVolume );
+                            result.setBufferPool(bufferPool);
+                            result.setWeldVertices(weldVertices);
+                            result.setSkirtDepth(getSkirtDepth(xzScale));
+                            return result;
                         }                                                               
                     };
                 
@@ -269,7 +529,7 @@ public class TerrainState extends BaseAppState {
             };                
         
         // And finally the factory
-        ZoneFactory rootFactory = new IsoTerrainZoneFactory(volume, 
+        ZoneFactory rootFactory = new IsoTerrainZoneFactory(chunkVolume, 
                                                             new Vector3f(cx, cy, cz),
                                                             new Vector3f(0, yBase, 0),
                                                             generator,
@@ -277,7 +537,35 @@ public class TerrainState extends BaseAppState {
                                                             false);
                 
         pager = new PagedGrid(rootFactory, builder, rootGrid, yLayers, radius);        
+        setScheduledRange(rootGrid, radius);
         land.attachChild(pager.getGridRoot());
+ 
+        // Past the full resolution land we page progressively coarser
+        // rings of terrain.  Each ring is its own pager with chunks twice
+        // as wide as the last but the same number of samples, so each ring
+        // costs about the same as the first while covering twice the
+        // distance.  The pagers are all centered on the camera so each
+        // coarser grid also reaches underneath the finer ones.  The
+        // coverage turns them into annuli: coarse zones well inside the
+        // finer ring are never built and coarse columns that the finer
+        // ring has fully applied are hidden, as are the few finer columns
+        // hanging out past the coarse cell boundaries.  The chunk skirts
+        // cover the cracks where two resolutions meet.
+        // Only the full resolution ring has grass, trees, etc. and
+        // collision always samples the unscaled world volume.
+        if( lodRings > 0 ) {
+            ZoneBuilderState builderState = getState(ZoneBuilderState.class);
+            lodCoverage = new LodRingCoverage(2);
+            lodCoverage.addLevel(rootGrid, radius, yLayers);
+            builderState.getScheduler().setCoverage(lodCoverage);
+            builderState.getBuilder().addZoneListener(lodCoverage);
+        }
+        for( int i = 1; i <= lodRings; i++ ) {
+            float ringScale = xzScale * (1 << i);
+            PagedGrid ring = createLodRing(i, ringScale, builder, yBase, yLayers, radius);
+            lodPagers.add(ring);
+            land.attachChild(ring.getGridRoot());
+        }
         
         boolean grass = true;
         if( grass ) {
@@ -287,7 +575,7 @@ public class TerrainState extends BaseAppState {
  
             // Grass uses the same noise texture that the shader uses to plot
             // borders, etc.
-            BilinearArray noise = BilinearArray.fromTexture(app.getAssetManager().loadTexture("Textures/noise-x3-512.png"));        
+            BilinearArray noise = noiseFields.get("Textures/noise-x3-512.png");        
  
             Grid grassGrid = new Grid(new Vector3f(32, 32, 32), new Vector3f(0, (yBase + 32), 0));  
             ZoneFactory grassFactory = new GrassZone.Factory(grassMaterial, noise);
@@ -295,8 +583,12 @@ public class TerrainState extends BaseAppState {
             int grassDistance = 64;
             grassMaterial.setFloat("DistanceFalloff", grassDistance + 16);      
         
+            // Grass batches are built per zone with their own buffers
+            // so they can be freed as soon as their zone goes away.
+            getState(ZoneBuilderState.class).getBuilder().addMeshOwner(GrassZone.class);
             PagedGrid grassPager = new PagedGrid(pager, grassFactory, builder, grassGrid, 2, grassDistance / 32);
             grassPager.setPriorityBias(2);
+            setScheduledRange(grassGrid, grassDistance / 32);
             grassPager.setTrackViewLocation(true);
             land.attachChild(grassPager.getGridRoot());
         } 
@@ -308,7 +600,7 @@ public class TerrainState extends BaseAppState {
             plotMaterial.getAdditionalRenderState().setWireframe(true);
             plotMaterial.setBoolean("VertexColor", true);
         
-            BilinearArray noise = BilinearArray.fromTexture(app.getAssetManager().loadTexture("Textures/noise-x3-512.png"));        
+            BilinearArray noise = noiseFields.get("Textures/noise-x3-512.png");        
     
             Grid plotGrid = new Grid(new Vector3f(32, 32, 32), new Vector3f(0, (yBase + 32), 0));  
             ZoneFactory plotFactory = new PlotFrequencyZone.Factory(plotMaterial, noise);
@@ -316,6 +608,7 @@ public class TerrainState extends BaseAppState {
             int plotDistance = 32; //64;
             PagedGrid plotPager = new PagedGrid(pager, plotFactory, builder, plotGrid, 2, plotDistance / 32);
             plotPager.setPriorityBias(1);
+            setScheduledRange(plotGrid, plotDistance / 32);
             land.attachChild(plotPager.getGridRoot());
         } 
 
@@ -339,7 +632,7 @@ public class TerrainState extends BaseAppState {
             treeMaterial.getAdditionalRenderState().setWireframe(true);
             treeMaterial.setBoolean("VertexColor", true);
         
-            BilinearArray noise = BilinearArray.fromTexture(app.getAssetManager().loadTexture("Textures/noise-x3-512.png"));        
+            BilinearArray noise = noiseFields.get("Textures/noise-x3-512.png");        
  
             int treeGridSpacing = 16;   
             Grid treeGrid = new Grid(new Vector3f(treeGridSpacing, 32, treeGridSpacing), new Vector3f(0, (yBase + 32), 0));
@@ -353,6 +646,7 @@ public class TerrainState extends BaseAppState {
             int treeDistance = 128;
             PagedGrid treePager = new PagedGrid(pager, treeFactory, builder, treeGrid, 2, treeDistance / treeGridSpacing);
             //treePager.setPriorityBias(1);
+            setScheduledRange(treeGrid, treeDistance / treeGridSpacing);
             land.attachChild(treePager.getGridRoot());
         }
 
@@ -375,16 +669,120 @@ public class TerrainState extends BaseAppState {
         
         // And finally, we need to have our camera movement go through the
         // pager instead of directly to the camera
-        MovementHandler mover = new PagedGridMovementHandler(pager, app.getCamera()) {
+        landMover = new PagedGridMovementHandler(pager, app.getCamera()) {
                     @Override 
                     protected void setLandLocation( float x, float z ) {
                         super.setLandLocation(x, z);
+                        if( gridPool != null ) {
+                            gridPool.setCenter(x, z);
+                        }
+                        for( PagedGrid ring : lodPagers ) {
+                            ring.setCenterWorldLocation(x, z);
+                        }
+                        if( lodCoverage != null ) {
+                            lodCoverage.setCenter(x, z);
+                        }
                         worldOffset.set(x, 0, z);
                     }
                 };
-                 
-        getState(MovementState.class).setMovementHandler(mover);
  
+        // The movement state and sky are not present when running
+        // headless.                 
+        if( getState(MovementState.class) != null ) {
+            getState(MovementState.class).setMovementHandler(landMover);
+        }
+ 
+        if( getState(SkyState.class) != null ) {
+            setupAtmospherics();
+        }
+        
+        resetAtmospherics();
+    }
+    
+    /**
+     *  Tells the builder's scheduler how many cells around the
+     *  viewer the specified grid pages.
+     */
+    protected void setScheduledRange( Grid grid, int radius ) {
+        getState(ZoneBuilderState.class).getScheduler().setRange(grid, radius);
+    }
+
+    /**
+     *  Returns how far the skirts of chunks with the specified xz
+     *  scale hang down.  They have to reach the surface of the next
+     *  coarser ring, which is only needed when there is one.
+     */
+    protected float getSkirtDepth( float scale ) {
+        return lodRings > 0 ? skirtDepth * scale * 2 : 0;
+    }
+
+    /**
+     *  Creates the pager for one of the coarse terrain rings.
+     */
+    protected PagedGrid createLodRing( int index, final float ringScale, Builder builder,
+                                       int yBase, int yLayers, int radius ) {
+        int cx = CHUNK_SIZE_XZ;
+        int cy = CHUNK_SIZE_Y;
+        int cz = CHUNK_SIZE_XZ;
+        int xzSize = (int)(cx * ringScale);
+
+        Grid grid = new Grid(new Vector3f(xzSize, cy, xzSize), new Vector3f(0, yBase, 0));
+
+        DensityVolume volume = new ResamplingVolume(new Vector3f(ringScale, 1, ringScale), worldVolume);
+        if( useInterpolation ) {
+            volume = new InterpolatingDensityVolume(volume);
+        }
+        Vector3f blockSize = new MarchingCubesMeshGenerator(cx, cy, cz, ringScale).getRequiredVolumeSize();
+        final ChunkSamplingVolume chunkVolume = new ChunkSamplingVolume(volume, blockSize,
+                                                                        new Vector3f(cx, cy, cz), ringScale);
+        if( useMeshCache ) {
+            String key = MeshCache.createKey(worldVolume.getClass().getName(),
+                                             cx, cy, cz, ringScale, yBase, useInterpolation,
+                                             weldVertices, getSkirtDepth(ringScale));
+            chunkVolume.setMeshCache(new MeshCache(meshCacheRoot, key, meshCacheBytes));
+        }
+
+        Supplier<MeshGenerator> generator = new Supplier<MeshGenerator>() {
+                private ThreadLocal<MarchingCubesMeshGenerator> generator = new ThreadLocal() {
+                        @Override 
+                        protected MarchingCubesMeshGenerator initialValue() {
+                            TerrainMeshGenerator result = new TerrainMeshGenerator( CHUNK_SIZE_XZ, 
+                                                                                    CHUNK_SIZE_Y, 
+                                                                                    CHUNK_SIZE_XZ,
+                                                                                    ringScale,
+                                                                                    chunkStats,
+                                                                                    chunkVolume );
+                            result.setBufferPool(bufferPool);
+                            result.setWeldVertices(weldVertices);
+                            result.setSkirtDepth(getSkirtDepth(ringScale));
+                            return result;
+                        }                                                               
+                    };
+                
+                @Override
+                public MeshGenerator get() {
+                    return generator.get();
+                }
+            };                
+
+        ZoneFactory factory = new IsoTerrainZoneFactory(chunkVolume, 
+                                                        new Vector3f(cx, cy, cz),
+                                                        new Vector3f(0, yBase, 0),
+                                                        generator,
+                                                        getTerrainMaterial(),
+                                                        false);
+        PagedGrid ring = new PagedGrid(factory, builder, grid, yLayers, radius);
+        setScheduledRange(grid, radius);
+        if( lodCoverage != null ) {
+            lodCoverage.addLevel(grid, radius, yLayers);
+        }
+        
+        // The near land is more important than the distant rings 
+        ring.setPriorityBias(index);
+        return ring;
+    }
+    
+    protected void setupAtmospherics() {
  
         // Setup for atmospherics
         AtmosphericParameters atmosphericParms = getState(SkyState.class).getAtmosphericParameters();
@@ -409,8 +807,6 @@ public class TerrainState extends BaseAppState {
         settings.addFloatProperty("Ground Exposure", atmosphericParms, "groundExposure", 0, 10, 0.1f);
         //settings.addFloatProperty("Planet Radius", atmosphericParms, "planetRadius", 4400, 63781, 10);
         settings.addFloatProperty("Air Density (%)", this, "airDensity", 0, 100, 0.001f ); 
-        
-        resetAtmospherics();
     }
     
     public void setAirDensity( float f ) {
@@ -443,7 +839,15 @@ public class TerrainState extends BaseAppState {
 
     @Override
     protected void cleanup( Application app ) {
+        for( PagedGrid ring : lodPagers ) {
+            ring.release();
+        }
         pager.release();
+        if( lodCoverage != null ) {
+            ZoneBuilderState builderState = getState(ZoneBuilderState.class);
+            builderState.getScheduler().setCoverage(null);
+            builderState.getBuilder().removeZoneListener(lodCoverage);
+        }
     }
 
     @Override
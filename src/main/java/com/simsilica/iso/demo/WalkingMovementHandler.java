@@ -41,10 +41,7 @@ import com.jme3.math.FastMath;
 import com.jme3.math.Quaternion;
 import com.jme3.math.Vector3f;
 import com.simsilica.iso.DensityVolume;
-import com.simsilica.iso.collision.Collider;
 import com.simsilica.iso.collision.Contact;
-import com.simsilica.iso.collision.SimpleVolumeCollider;
-import com.simsilica.iso.volume.CachingDensityVolume;
 import com.simsilica.lemur.event.BaseAppState;
 
 
@@ -52,7 +49,9 @@ import com.simsilica.lemur.event.BaseAppState;
 /**
  *  Wraps a movement handler to provide terrain
  *  collision, eye height above the surface, basic physics, 
- *  etc..
+ *  etc..  The physics runs in the fixed steps of the
+ *  PhysicsClockState, if there is one, and the eye position
+ *  is interpolated between the last two steps.
  *
  *  @author    Paul Speed
  */
@@ -62,7 +61,7 @@ public class WalkingMovementHandler extends BaseAppState
     private MovementHandler delegate;
     private DensityVolume worldVolume;  
     private DensityVolume cachedVolume;
-    private Collider worldCollider;
+    private DensityCollider worldCollider;
  
     private float radius = 0.2f;   
 
@@ -71,6 +70,10 @@ public class WalkingMovementHandler extends BaseAppState
     private Vector3f rawPosition = new Vector3f();
     private Vector3f lastPosition = new Vector3f();
     private Vector3f position = new Vector3f();
+    private Vector3f previousStep = new Vector3f();
+    private Vector3f renderPosition = new Vector3f();
+    private PhysicsClockState clock;
+    private MetricsRegistry.Timer collisionTimer;
     private float brakingAcceleration = 10;
     private float maxSpeed = 5;
     private float terminalVelocity = 10;
@@ -79,6 +82,14 @@ public class WalkingMovementHandler extends BaseAppState
     private boolean moving;
     private Vector3f movement = new Vector3f();
  
+    // Scratch objects so that update() doesn't create garbage
+    private Contact contact = new Contact();
+    private Vector3f eyePosition = new Vector3f();
+    private Vector3f sweepStart = new Vector3f();
+    private Vector3f sweepEnd = new Vector3f();
+    private Vector3f hit = new Vector3f();
+    private int maxSlides = 3;
+ 
     
     public WalkingMovementHandler() {
         setEnabled(false);
@@ -96,8 +107,10 @@ public class WalkingMovementHandler extends BaseAppState
     public void setLocation( Vector3f loc ) {
         rawPosition.set(loc);
         
-        float x = loc.x - position.x;
-        float z = loc.z - position.z; 
+        // Relative to where we were drawn, which may be
+        // between physics steps
+        float x = loc.x - renderPosition.x;
+        float z = loc.z - renderPosition.z; 
 
         // We don't want drift, so we'll just set the velocity
         // to x,z directly.
@@ -125,8 +138,12 @@ public class WalkingMovementHandler extends BaseAppState
     @Override
     protected void initialize( Application app ) {
         this.worldVolume = getState(TerrainState.class).getWorldVolume();
-        this.cachedVolume = new CachingDensityVolume(10, worldVolume, 16, 16); 
-        this.worldCollider = new SimpleVolumeCollider(cachedVolume);
+        this.cachedVolume = getState(TerrainState.class).getDensityCache(); 
+        this.worldCollider = new DensityCollider(cachedVolume);
+        this.clock = getState(PhysicsClockState.class);
+        if( getState(MetricsState.class) != null ) {
+            this.collisionTimer = getState(MetricsState.class).getRegistry().timer("collision.walker");
+        }
     }
 
     @Override
@@ -138,10 +155,30 @@ public class WalkingMovementHandler extends BaseAppState
 
         // Without drift, we just set the movement
         // directly as an impulse
-        if( moving ) {
+        if( moving && tpf > 0 ) {
             velocity.x = movement.x / tpf;
             velocity.z = movement.z / tpf;
         }
+
+        int steps = clock != null ? clock.getSteps() : 1;
+        float step = clock != null ? clock.getStep() : tpf;
+        for( int i = 0; i < steps; i++ ) {
+            previousStep.set(position);
+            step(step);
+        }
+        moving = false;
+
+        // Interpolate between the last two steps
+        float alpha = clock != null ? clock.getAlpha() : 1;
+        renderPosition.set(previousStep).interpolateLocal(position, alpha);
+        eyePosition.set(renderPosition.x, renderPosition.y + eyeHeight, renderPosition.z);
+        delegate.setLocation(eyePosition);
+    }
+
+    /**
+     *  Runs one physics step of the specified length.
+     */
+    protected void step( float tpf ) {
         
         // Integrate
         velocity.x += acceleration.x * tpf;
@@ -164,11 +201,12 @@ public class WalkingMovementHandler extends BaseAppState
         }
 
         // See if we are colliding
-        Contact c = worldCollider.getContact(position, radius);
-        if( c != null ) {            
-            position.addLocal(c.contactNormal.mult(c.penetration));            
+        long start = System.nanoTime();
+        boolean touching = collide();
+        if( collisionTimer != null ) {
+            collisionTimer.record(System.nanoTime() - start);
         }
-        if( c != null && c.contactNormal.y > 0.70711 ) {
+        if( touching && contact.contactNormal.y > 0.70711 ) {
             // Not falling
             acceleration.set(0, 0, 0);
             velocity.y = 0;
@@ -177,11 +215,7 @@ public class WalkingMovementHandler extends BaseAppState
             acceleration.set(0, -10, 0);
         }         
         
-        delegate.setLocation(position.add(0, eyeHeight, 0));
-        
-        if( moving ) {
-            moving = false;
-        } else {
+        if( !moving ) {
             // Start braking
             float x = velocity.x;
             float z = velocity.z;
@@ -197,6 +231,43 @@ public class WalkingMovementHandler extends BaseAppState
         }
     }
 
+    /**
+     *  Sweeps from lastPosition to position, sliding along anything
+     *  hit on the way so that fast movement can't tunnel through thin
+     *  terrain.  Leaves the final contact, if any, in 'contact' and returns
+     *  true if there was one.
+     */
+    protected boolean collide() {
+        boolean touching = false;
+        sweepStart.set(lastPosition);
+        sweepEnd.set(position);
+        for( int i = 0; i < maxSlides; i++ ) {
+            if( !worldCollider.sweep(sweepStart, sweepEnd, radius, contact, hit) ) {
+                break;
+            }
+            touching = true;
+            
+            // Push out of the ground and keep whatever is left of the
+            // movement that isn't into the ground
+            Vector3f n = contact.contactNormal;
+            sweepStart.scaleAdd(contact.penetration, n, hit);
+            sweepEnd.subtractLocal(hit);
+            float into = sweepEnd.dot(n);
+            if( into < 0 ) {
+                sweepEnd.scaleAdd(-into, n, sweepEnd);
+            }
+            sweepEnd.addLocal(sweepStart);
+        }
+        position.set(sweepEnd);
+        
+        // One last discrete check where we ended up
+        if( worldCollider.getContact(position, radius, contact) ) {
+            position.scaleAdd(contact.penetration, contact.contactNormal, position);
+            touching = true;
+        }
+        return touching;
+    }
+
     @Override
     protected void enable() {
         
@@ -204,6 +275,8 @@ public class WalkingMovementHandler extends BaseAppState
         this.delegate = movementState.getMovementHandler();       
     
         position.set(delegate.getLocation());
+        previousStep.set(position);
+        renderPosition.set(position);
  
         movementState.setMovementHandler(this);
     }
@@ -0,0 +1,1077 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+import com.simsilica.builder.Builder;
+import com.simsilica.builder.BuilderReference;
+import com.simsilica.pager.Zone;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ *  A Builder that builds the paged zones on a pool of background
+ *  threads that sizes itself to the machine and to how the game
+ *  is running.  It keeps track of what it is doing so that the
+ *  paging behavior can be measured.
+ *
+ *  <p>The pool starts at half of the available processors and can
+ *  use all but one of them, leaving a core for the render thread.  Once
+ *  per adjustment period it grows by a thread when the queue of waiting
+ *  zones backs up while the update thread's frame time is comfortably
+ *  under the target, and shrinks by a thread when the frame time rises
+ *  above the target.  Shrinking takes precedence.</p>
+ *
+ *  <p>Finished zones are applied on the update thread within a
+ *  per-frame time budget, nearest first, so that a burst of zones
+ *  finishing together is spread over several frames.</p>
+ *
+ *  <p>With a ZoneScheduler set, queued zones are re-scored from where
+ *  the viewer is heading whenever the scheduler's revision changes,
+ *  and at least every rescheduleMillis, and zones that fall out of the
+ *  scheduler's predicted set are parked instead of built.  Parked
+ *  zones are queued again once they are back in the predicted set
+ *  and are dropped when released.  Zones that the scheduler reports
+ *  as covered by finer land are deferred the same way, separately
+ *  from the parked zones, until they are uncovered or released.</p>
+ *
+ *  <p>A zone released while it is being built is cancelled
+ *  cooperatively: build code running on a builder thread can call
+ *  checkCancelled() between its phases and the CancellationException
+ *  it throws ends the build early.  The zone is then released
+ *  as usual.</p>
+ *
+ *  <p>With a DirectBufferPool set, the pooled meshes under a released
+ *  zone's root are recycled once the zone has been released.  Zone
+ *  types registered as mesh owners, whose meshes are built by library
+ *  code and so can't come from the pool, have the direct buffers of
+ *  their meshes freed on release instead of waiting for the garbage
+ *  collector.</p>
+ *
+ *  <p>Like the regular Builder, build() and release() are expected to
+ *  be called from the update thread and apply() and release() are
+ *  always called on the references from the update thread during
+ *  applyUpdates().  A reference is never applied while it is being
+ *  built.</p>
+ */
+public class ZoneBuilder extends Builder {
+
+    static Logger log = LoggerFactory.getLogger(ZoneBuilder.class);
+
+    private static final ThreadLocal<Job> currentJob = new ThreadLocal<Job>();
+
+    private final Map<BuilderReference, Job> jobs = new ConcurrentHashMap<BuilderReference, Job>();
+    private final ConcurrentLinkedQueue<Job> done = new ConcurrentLinkedQueue<Job>();
+    private final ConcurrentLinkedQueue<Job> releases = new ConcurrentLinkedQueue<Job>();
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger building = new AtomicInteger();
+    private final AtomicLong builtCount = new AtomicLong();
+    private final AtomicLong buildNanos = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    private int maxUpdates = 4;
+    private long appliedCount;
+
+    // Optional instrumentation.  setMetrics() can null these at any
+    // time so they are always read into a local before use.
+    private volatile MetricsRegistry metrics;
+    private volatile MetricsRegistry.Counter queuedCounter;
+    private volatile MetricsRegistry.Counter builtCounter;
+    private volatile MetricsRegistry.Counter cancelledCounter;
+    private volatile MetricsRegistry.Counter appliedCounter;
+    private volatile MetricsRegistry.Counter releasedCounter;
+    private volatile MetricsRegistry.Counter parkedCounter;
+
+    // Only accessed from the update thread
+    private final PriorityQueue<Job> ready = new PriorityQueue<Job>();
+    private float applyBudgetMillis = 2;
+    private float rescheduleMillis = 250;
+    private int scheduleRevision;
+    private long lastReschedule;
+    private int frameApplied;
+    private int lastFrameApplied;
+    private ZoneScheduler scheduler;
+    private final List<Job> parked = new ArrayList<Job>();
+    private final List<Job> deferred = new ArrayList<Job>();
+    private final List<ZoneListener> listeners = new ArrayList<ZoneListener>();
+    private final List<Runnable> pending = new ArrayList<Runnable>();
+    private DirectBufferPool bufferPool;
+    private final List<Mesh> releasedMeshes = new ArrayList<Mesh>();
+    private final List<Mesh> appliedMeshes = new ArrayList<Mesh>();
+    private final Set<Class<?>> meshOwners = new HashSet<Class<?>>();
+    private final Vector3f location = new Vector3f();
+
+    // Adaptive pool sizing, only accessed from the update thread
+    private boolean adaptive = true;
+    private int minPoolSize = 1;
+    private int maxPoolSize;
+    private int poolSize;
+    private float targetFrameMillis = 1000f / 60;
+    private float growHeadroom = 0.1f;
+    private float frameMillis = -1;
+    private float adjustPeriod = 0.5f;
+    private float sinceAdjust;
+    private int jobsPerThread = 4;
+    private long lastBuiltCount;
+    private long lastBuildNanos;
+    private long lastLatencyNanos;
+    private double windowBuildMillis;
+    private double windowLatencyMillis;
+
+    /**
+     *  Creates a builder with an adaptive pool sized from the
+     *  available processors.
+     */
+    public ZoneBuilder( String name ) {
+        this(name, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     *  Creates a builder with the specified starting pool size.  The
+     *  pool may grow to the larger of this size and all but one of the
+     *  available processors.
+     */
+    public ZoneBuilder( final String name, int poolSize ) {
+        super(name, 1);
+        // Everything is built on our own executor below so the base
+        // class pool is never used.  Shut it down so that it doesn't
+        // hold a thread for the life of the builder.
+        super.shutdown();
+        this.maxPoolSize = Math.max(poolSize, Runtime.getRuntime().availableProcessors() - 1);
+        this.poolSize = Math.max(minPoolSize, poolSize);
+        this.executor = new ThreadPoolExecutor(this.poolSize, this.poolSize,
+                                               1, TimeUnit.SECONDS,
+                                               new PriorityBlockingQueue<Runnable>(),
+                                               new ThreadFactory() {
+                                                    private final AtomicInteger count = new AtomicInteger();
+                                                    @Override
+                                                    public Thread newThread( Runnable r ) {
+                                                        Thread t = new Thread(r, name + "[" + count.incrementAndGet() + "]");
+                                                        t.setDaemon(true);
+                                                        t.setPriority(Thread.MIN_PRIORITY);
+                                                        return t;
+                                                    }
+                                               });
+        log.info("Builder pool size:" + this.poolSize + " max:" + maxPoolSize);
+    }
+
+    @Override
+    public void setMaxUpdates( int maxUpdates ) {
+        super.setMaxUpdates(maxUpdates);
+        this.maxUpdates = maxUpdates;
+    }
+
+    public int getMaxUpdates() {
+        return maxUpdates;
+    }
+
+    /**
+     *  Sets the registry that queued, built, applied, and released
+     *  zone counts and per zone type build times and latencies are
+     *  published to.  Build times are kept per reference class,
+     *  which for paged zones is the zone type and so the factory.
+     */
+    public void setMetrics( MetricsRegistry metrics ) {
+        this.appliedCounter = metrics != null ? metrics.counter("zones.applied") : null;
+        this.releasedCounter = metrics != null ? metrics.counter("zones.released") : null;
+        this.queuedCounter = metrics != null ? metrics.counter("zones.queued") : null;
+        this.builtCounter = metrics != null ? metrics.counter("zones.built") : null;
+        this.parkedCounter = metrics != null ? metrics.counter("zones.parked") : null;
+        this.cancelledCounter = metrics != null ? metrics.counter("zones.cancelled") : null;
+        this.metrics = metrics;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     *  Sets the scheduler that scores and filters queued zones
+     *  each frame.  Must be called from the update thread.
+     */
+    public void setScheduler( ZoneScheduler scheduler ) {
+        this.scheduler = scheduler;
+        this.lastReschedule = 0;
+        if( scheduler == null ) {
+            // Nothing will unpark them anymore
+            requeue(parked);
+            requeue(deferred);
+        }
+    }
+
+    private void requeue( List<Job> list ) {
+        for( Job job : list ) {
+            synchronized( job ) {
+                job.state = JobState.Queued;
+                queued.incrementAndGet();
+                submit(job);
+            }
+        }
+        list.clear();
+    }
+
+    /**
+     *  Adds a listener that is told on the update thread about zones
+     *  being applied and released.
+     */
+    public void addZoneListener( ZoneListener l ) {
+        listeners.add(l);
+    }
+
+    public void removeZoneListener( ZoneListener l ) {
+        listeners.remove(l);
+    }
+
+    public ZoneScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     *  Returns the reference being built on the calling thread or
+     *  null outside of a ZoneBuilder build.
+     */
+    public static BuilderReference getCurrentReference() {
+        Job job = currentJob.get();
+        return job != null ? job.ref : null;
+    }
+
+    /**
+     *  Returns true if the zone being built on the calling thread
+     *  has been released since its build started.  Always false
+     *  outside of a ZoneBuilder build.
+     */
+    public static boolean isBuildCancelled() {
+        Job job = currentJob.get();
+        return job != null && job.released;
+    }
+
+    /**
+     *  Throws a CancellationException if the zone being built on the
+     *  calling thread has been released.  Builds should call this
+     *  between phases and before allocating their buffers.
+     */
+    public static void checkCancelled() {
+        if( isBuildCancelled() ) {
+            throw new CancellationException("Zone released during build");
+        }
+    }
+
+    /**
+     *  Sets the pool that the meshes of released zones are returned
+     *  to.  Must be called from the update thread.
+     */
+    public void setBufferPool( DirectBufferPool bufferPool ) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     *  Registers a zone class whose zones build their own meshes and
+     *  share them with nothing else, so that the meshes' buffers can
+     *  be freed as soon as such a zone is released.  Must be called
+     *  from the update thread.
+     */
+    public void addMeshOwner( Class<?> zoneType ) {
+        meshOwners.add(zoneType);
+    }
+
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    @Override
+    public void build( BuilderReference ref ) {
+        Job job = jobs.get(ref);
+        if( job == null ) {
+            job = new Job(ref);
+            jobs.put(ref, job);
+        }
+        synchronized( job ) {
+            switch( job.state ) {
+                case Idle:
+                    enqueue(job);
+                    break;
+                case Queued:
+                case Parked:
+                case Deferred:
+                    // Already waiting
+                    break;
+                case Building:
+                case Built:
+                    // Build it again once the current results are applied
+                    job.rebuild = true;
+                    break;
+            }
+        }
+    }
+
+    private void enqueue( Job job ) {
+        job.state = JobState.Queued;
+        job.queuedTime = System.nanoTime();
+        job.sequence = sequence.getAndIncrement();
+        queued.incrementAndGet();
+        MetricsRegistry.Counter counter = queuedCounter;
+        if( counter != null ) {
+            counter.increment();
+        }
+        if( ZoneEvents.isEnabled() ) {
+            ZoneEvents.record(ZoneEvents.Type.Enqueue, job.sequence, job.getType(), job.x, job.y, job.z);
+        }
+        submit(job);
+    }
+
+    /**
+     *  Hands a queued job to the executor with its current score,
+     *  defers it if the scheduler reports it as covered, or parks it
+     *  if the scheduler doesn't expect it to be needed.  Called with
+     *  the job's state set to Queued.
+     */
+    private void submit( Job job ) {
+        if( scheduler != null && scheduler.isCovered(job.ref) ) {
+            job.state = JobState.Deferred;
+            queued.decrementAndGet();
+            deferred.add(job);
+            return;
+        }
+        if( scheduler != null && !scheduler.isPredicted(job.ref) ) {
+            job.state = JobState.Parked;
+            queued.decrementAndGet();
+            parked.add(job);
+            MetricsRegistry.Counter counter = parkedCounter;
+            if( counter != null ) {
+                counter.increment();
+            }
+            return;
+        }
+        job.priority = getPriority(job.ref);
+        executor.execute(job);
+    }
+
+    private int getPriority( BuilderReference ref ) {
+        int priority = ref.getPriority();
+        return scheduler != null ? scheduler.score(ref, priority) : priority;
+    }
+
+    /**
+     *  Re-scores everything still waiting in the executor queue,
+     *  parks or defers the jobs that have left the scheduler's
+     *  predicted set or become covered, and queues the parked and
+     *  deferred jobs that are wanted again.
+     *  A job's priority can only change while it is out of the
+     *  queue so the whole queue is drained and resubmitted.
+     */
+    protected void reschedule() {
+        executor.getQueue().drainTo(pending);
+        for( Runnable r : pending ) {
+            Job job = (Job)r;
+            synchronized( job ) {
+                if( job.state == JobState.Queued ) {
+                    submit(job);
+                }
+            }
+        }
+        pending.clear();
+
+        unpark(parked);
+        unpark(deferred);
+    }
+
+    private void unpark( List<Job> list ) {
+        for( Iterator<Job> it = list.iterator(); it.hasNext(); ) {
+            Job job = it.next();
+            if( scheduler.isCovered(job.ref) || !scheduler.isPredicted(job.ref) ) {
+                continue;
+            }
+            it.remove();
+            synchronized( job ) {
+                job.state = JobState.Queued;
+                queued.incrementAndGet();
+                submit(job);
+            }
+        }
+    }
+
+    @Override
+    public void release( BuilderReference ref ) {
+        Job job = jobs.remove(ref);
+        if( job == null ) {
+            // Never built
+            ref.release(this);
+            fireReleased(ref);
+            return;
+        }
+        synchronized( job ) {
+            job.released = true;
+            job.rebuild = false;
+            switch( job.state ) {
+                case Queued:
+                    executor.remove(job);
+                    queued.decrementAndGet();
+                    job.state = JobState.Idle;
+                    releases.add(job);
+                    break;
+                case Parked:
+                    parked.remove(job);
+                    job.state = JobState.Idle;
+                    releases.add(job);
+                    break;
+                case Deferred:
+                    deferred.remove(job);
+                    job.state = JobState.Idle;
+                    releases.add(job);
+                    break;
+                case Idle:
+                    releases.add(job);
+                    break;
+                case Building:
+                    // The worker will hand it to the release queue when
+                    // it's done
+                    break;
+                case Built:
+                    // applyUpdates() will release it instead of applying
+                    break;
+            }
+        }
+    }
+
+    /**
+     *  Applies finished zones and releases dropped zones on the update
+     *  thread, nearest zones first, until the per-frame apply budget
+     *  or the max updates count runs out.  At least one apply and one
+     *  release are always done per frame so that nothing starves.
+     */
+    @Override
+    public void applyUpdates() {
+        long start = System.nanoTime();
+        long budget = (long)(applyBudgetMillis * 1000000);
+
+        if( scheduler != null ) {
+            // Re-scoring drains and refills the whole queue so only
+            // do it when the viewer has moved or turned enough to
+            // matter, with a slow fallback for coverage changes
+            long now = System.nanoTime();
+            int revision = scheduler.getRevision();
+            if( revision != scheduleRevision || lastReschedule == 0
+                || now - lastReschedule >= (long)(rescheduleMillis * 1000000) ) {
+                scheduleRevision = revision;
+                lastReschedule = now;
+                reschedule();
+            }
+        }
+
+        // Pick up everything that finished since last frame and order
+        // it by its current priority
+        Job job;
+        while( (job = done.poll()) != null ) {
+            job.priority = getPriority(job.ref);
+            ready.add(job);
+        }
+
+        int count = 0;
+        while( !ready.isEmpty() ) {
+            if( count > 0 && (count >= maxUpdates || System.nanoTime() - start >= budget) ) {
+                break;
+            }
+            job = ready.poll();
+            boolean released;
+            boolean rebuild;
+            synchronized( job ) {
+                job.state = JobState.Idle;
+                released = job.released;
+                rebuild = job.rebuild;
+                job.rebuild = false;
+            }
+            if( released ) {
+                releaseJob(job);
+                continue;
+            }
+            job.ref.apply(this);
+            for( ZoneListener l : listeners ) {
+                l.zoneApplied(job.ref);
+            }
+            if( ZoneEvents.isEnabled() ) {
+                recordApply(job);
+            }
+            appliedCount++;
+            MetricsRegistry.Counter counter = appliedCounter;
+            if( counter != null ) {
+                counter.increment();
+            }
+            frameApplied++;
+            count++;
+            if( rebuild ) {
+                synchronized( job ) {
+                    if( !job.released && job.state == JobState.Idle ) {
+                        enqueue(job);
+                    }
+                }
+            }
+        }
+
+        int releaseCount = 0;
+        while( (job = releases.peek()) != null ) {
+            if( releaseCount > 0 && System.nanoTime() - start >= budget ) {
+                break;
+            }
+            releases.poll();
+            releaseJob(job);
+            releaseCount++;
+        }
+
+        for( ZoneListener l : listeners ) {
+            l.updatesApplied();
+        }
+    }
+
+    private void fireReleased( BuilderReference ref ) {
+        for( ZoneListener l : listeners ) {
+            l.zoneReleased(ref);
+        }
+    }
+
+    private void releaseJob( Job job ) {
+        DirectBufferPool pool = bufferPool;
+        boolean owner = meshOwners.contains(job.ref.getClass());
+        if( (pool != null || owner) && job.ref instanceof Zone ) {
+            // Grab the meshes before the zone lets go of them
+            collectMeshes(((Zone)job.ref).getZoneRoot(), releasedMeshes);
+        }
+        job.ref.release(this);
+        fireReleased(job.ref);
+        if( !releasedMeshes.isEmpty() ) {
+            for( Mesh mesh : releasedMeshes ) {
+                if( pool != null && pool.recycle(mesh) ) {
+                    continue;
+                }
+                if( owner ) {
+                    for( VertexBuffer vb : mesh.getBufferList() ) {
+                        if( vb.getData() != null && vb.getData().isDirect() ) {
+                            BufferUtils.destroyDirectBuffer(vb.getData());
+                        }
+                    }
+                }
+            }
+            releasedMeshes.clear();
+        }
+        if( ZoneEvents.isEnabled() ) {
+            ZoneEvents.record(ZoneEvents.Type.Release, job.sequence, job.getType(), job.x, job.y, job.z);
+        }
+        MetricsRegistry.Counter counter = releasedCounter;
+        if( counter != null ) {
+            counter.increment();
+        }
+    }
+
+    private void recordApply( Job job ) {
+        int tris = 0;
+        long size = 0;
+        if( job.ref instanceof Zone ) {
+            collectMeshes(((Zone)job.ref).getZoneRoot(), appliedMeshes);
+            for( Mesh mesh : appliedMeshes ) {
+                tris += mesh.getTriangleCount();
+                size += ZoneEvents.getByteSize(mesh);
+            }
+            appliedMeshes.clear();
+        }
+        ZoneEvents.record(ZoneEvents.Type.Apply, job.sequence, job.getType(), job.x, job.y, job.z,
+                          tris, size);
+    }
+
+    private static void collectMeshes( Spatial spatial, List<Mesh> store ) {
+        if( spatial instanceof Geometry ) {
+            Mesh mesh = ((Geometry)spatial).getMesh();
+            if( mesh != null ) {
+                store.add(mesh);
+            }
+        } else if( spatial instanceof Node ) {
+            for( Spatial child : ((Node)spatial).getChildren() ) {
+                collectMeshes(child, store);
+            }
+        }
+    }
+
+    /**
+     *  Sets the longest time, in milliseconds, that queued zones go
+     *  without being re-scored when the scheduler's revision doesn't
+     *  change.  Defaults to 250.
+     */
+    public void setRescheduleMillis( float rescheduleMillis ) {
+        this.rescheduleMillis = rescheduleMillis;
+    }
+
+    public float getRescheduleMillis() {
+        return rescheduleMillis;
+    }
+
+    /**
+     *  Sets how many milliseconds per frame the update thread
+     *  may spend applying and releasing zones.
+     */
+    public void setApplyBudgetMillis( float applyBudgetMillis ) {
+        this.applyBudgetMillis = applyBudgetMillis;
+    }
+
+    public float getApplyBudgetMillis() {
+        return applyBudgetMillis;
+    }
+
+    /**
+     *  Returns the number of finished zones waiting to be applied
+     *  on the update thread.
+     */
+    public int getReadyCount() {
+        return ready.size() + done.size();
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdownNow();
+        super.shutdown();
+    }
+
+    /**
+     *  Called once per frame by the owning app state after
+     *  the updates have been applied.  tpf is the frame time in seconds
+     *  and is used to adjust the pool size when adaptive sizing is
+     *  on.
+     */
+    public void endFrame( float tpf ) {
+        lastFrameApplied = frameApplied;
+        frameApplied = 0;
+
+        float millis = tpf * 1000;
+        if( frameMillis < 0 ) {
+            frameMillis = millis;
+        } else {
+            frameMillis += (millis - frameMillis) * 0.1f;
+        }
+
+        sinceAdjust += tpf;
+        if( sinceAdjust < adjustPeriod ) {
+            return;
+        }
+        sinceAdjust = 0;
+        sampleWindow();
+
+        if( !adaptive ) {
+            return;
+        }
+        int depth = queued.get();
+        if( frameMillis > targetFrameMillis * 1.2f && poolSize > minPoolSize && depth > 0 ) {
+            // The background threads may be competing with the render
+            // thread... back off.
+            setPoolSize(poolSize - 1);
+        } else if( frameMillis <= targetFrameMillis * (1 - growHeadroom)
+                   && depth > poolSize * jobsPerThread && poolSize < maxPoolSize ) {
+            // Only grow with some room to spare under the target so
+            // that one more thread doesn't immediately push the frame
+            // over it.
+            setPoolSize(poolSize + 1);
+        }
+    }
+
+    private void sampleWindow() {
+        long built = builtCount.get();
+        long nanos = buildNanos.get();
+        long latency = latencyNanos.get();
+        long count = built - lastBuiltCount;
+        if( count > 0 ) {
+            windowBuildMillis = ((nanos - lastBuildNanos) / 1000000.0) / count;
+            windowLatencyMillis = ((latency - lastLatencyNanos) / 1000000.0) / count;
+        }
+        lastBuiltCount = built;
+        lastBuildNanos = nanos;
+        lastLatencyNanos = latency;
+    }
+
+    /**
+     *  Sets the number of background threads, clamped to the
+     *  min and max pool size.
+     */
+    public void setPoolSize( int size ) {
+        size = Math.max(minPoolSize, Math.min(size, maxPoolSize));
+        if( size == poolSize ) {
+            return;
+        }
+        // Keep core <= max at every step
+        if( size > poolSize ) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+        log.debug("Builder pool size:" + poolSize + " -> " + size + "  queue:" + queued.get()
+                    + "  frame:" + frameMillis + " ms");
+        poolSize = size;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public void setMaxPoolSize( int max ) {
+        this.maxPoolSize = Math.max(minPoolSize, max);
+        if( poolSize > maxPoolSize ) {
+            setPoolSize(maxPoolSize);
+        }
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public void setAdaptive( boolean adaptive ) {
+        this.adaptive = adaptive;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     *  Sets the update thread frame time, in milliseconds, above which
+     *  the pool will give up threads.
+     */
+    public void setTargetFrameMillis( float targetFrameMillis ) {
+        this.targetFrameMillis = targetFrameMillis;
+    }
+
+    public float getTargetFrameMillis() {
+        return targetFrameMillis;
+    }
+
+    /**
+     *  Sets the fraction of the target frame time that must be left
+     *  over before the pool will take on another thread.  Defaults
+     *  to 0.1, growing only below 90% of the target.
+     */
+    public void setGrowHeadroom( float growHeadroom ) {
+        this.growHeadroom = growHeadroom;
+    }
+
+    public float getGrowHeadroom() {
+        return growHeadroom;
+    }
+
+    /**
+     *  Returns the smoothed update thread frame time in milliseconds.
+     */
+    public float getFrameMillis() {
+        return frameMillis;
+    }
+
+    /**
+     *  Returns the number of references that are waiting for
+     *  a builder thread.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     *  Returns the number of references that are held back because
+     *  the scheduler doesn't expect them to be needed.
+     */
+    public int getParkedCount() {
+        return parked.size();
+    }
+
+    /**
+     *  Returns the number of zones held back because the scheduler
+     *  reports them as covered by finer land.
+     */
+    public int getDeferredCount() {
+        return deferred.size();
+    }
+
+    /**
+     *  Returns the number of references currently being built
+     *  on a builder thread.
+     */
+    public int getActiveBuilds() {
+        return building.get();
+    }
+
+    /**
+     *  Returns true if nothing is waiting to be built or is
+     *  currently building.
+     */
+    public boolean isIdle() {
+        return queued.get() == 0 && building.get() == 0;
+    }
+
+    /**
+     *  Returns true if, besides being idle, no finished zones are
+     *  waiting to be applied or released and no zones are parked.
+     *  Zones deferred as covered don't count since they won't be
+     *  built until the viewer moves.  Must be called from the update
+     *  thread.
+     */
+    public boolean isQuiescent() {
+        return isIdle() && done.isEmpty() && ready.isEmpty()
+                && releases.isEmpty() && parked.isEmpty();
+    }
+
+    /**
+     *  Returns the number of references applied during the
+     *  last completed frame.
+     */
+    public int getLastFrameApplied() {
+        return lastFrameApplied;
+    }
+
+    /**
+     *  Returns the number of builds that stopped early because their
+     *  zone was released.
+     */
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    public long getBuiltCount() {
+        return builtCount.get();
+    }
+
+    public long getAppliedCount() {
+        return appliedCount;
+    }
+
+    /**
+     *  Returns the average background build time in milliseconds.
+     */
+    public double getAverageBuildMillis() {
+        long count = builtCount.get();
+        if( count == 0 ) {
+            return 0;
+        }
+        return (buildNanos.get() / 1000000.0) / count;
+    }
+
+    /**
+     *  Returns the average background build time in milliseconds
+     *  over the last adjustment period.
+     */
+    public double getRecentBuildMillis() {
+        return windowBuildMillis;
+    }
+
+    /**
+     *  Returns the average time in milliseconds from a reference
+     *  being queued until its build finished, over the last
+     *  adjustment period.
+     */
+    public double getRecentLatencyMillis() {
+        return windowLatencyMillis;
+    }
+
+    private enum JobState { Idle, Queued, Parked, Deferred, Building, Built };
+
+    /**
+     *  Observes zones being applied and released.  All methods are
+     *  called on the update thread from applyUpdates() except for
+     *  releases of never built zones, which come from release().
+     */
+    public interface ZoneListener {
+        public void zoneApplied( BuilderReference ref );
+        public void zoneReleased( BuilderReference ref );
+
+        /**
+         *  Called at the end of every applyUpdates().
+         */
+        public void updatesApplied();
+    }
+
+    private class Job implements Runnable, Comparable<Job> {
+        private final BuilderReference ref;
+        private JobState state = JobState.Idle;
+        private volatile boolean released;
+        private boolean rebuild;
+        private long queuedTime;
+        private long sequence;
+        private int priority;
+        private MetricsRegistry.Timer buildTimer;
+        private MetricsRegistry.Timer latencyTimer;
+        private volatile String type;
+
+        // The zone's world location for the event recorder
+        private final int x;
+        private final int y;
+        private final int z;
+
+        public Job( BuilderReference ref ) {
+            this.ref = ref;
+            if( ref instanceof Zone ) {
+                ((Zone)ref).getWorldLocation(location);
+                this.x = Math.round(location.x);
+                this.y = Math.round(location.y);
+                this.z = Math.round(location.z);
+            } else {
+                this.x = 0;
+                this.y = 0;
+                this.z = 0;
+            }
+        }
+
+        public String getType() {
+            if( type == null ) {
+                type = ref.getClass().getSimpleName();
+            }
+            return type;
+        }
+
+        private void record( long buildNanos, long latencyNanos ) {
+            MetricsRegistry registry = metrics;
+            MetricsRegistry.Counter counter = builtCounter;
+            if( registry == null ) {
+                return;
+            }
+            if( buildTimer == null ) {
+                buildTimer = registry.timer("build." + getType());
+                latencyTimer = registry.timer("latency." + getType());
+            }
+            buildTimer.record(buildNanos);
+            latencyTimer.record(latencyNanos);
+            if( counter != null ) {
+                counter.increment();
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized( this ) {
+                if( state != JobState.Queued ) {
+                    // Released while it was waiting
+                    return;
+                }
+                state = JobState.Building;
+                queued.decrementAndGet();
+                building.incrementAndGet();
+            }
+            long start = System.nanoTime();
+            boolean events = ZoneEvents.isEnabled();
+            if( events ) {
+                ZoneEvents.record(ZoneEvents.Type.BuildStart, sequence, getType(), x, y, z);
+                ZoneEvents.setCurrentBuild(sequence, x, y, z);
+            }
+            boolean cancelled = false;
+            currentJob.set(this);
+            try {
+                ref.build();
+            } catch( CancellationException e ) {
+                cancelled = true;
+            } catch( RuntimeException e ) {
+                log.error("Error building:" + ref, e);
+            } finally {
+                currentJob.remove();
+                if( events ) {
+                    ZoneEvents.record(cancelled ? ZoneEvents.Type.Cancel : ZoneEvents.Type.BuildEnd,
+                                      sequence, getType(), x, y, z);
+                    ZoneEvents.setCurrentBuild(-1, 0, 0, 0);
+                }
+                if( cancelled ) {
+                    // Partial builds would only skew the timings
+                    cancelledCount.incrementAndGet();
+                    MetricsRegistry.Counter counter = cancelledCounter;
+                    if( counter != null ) {
+                        counter.increment();
+                    }
+                } else {
+                    long end = System.nanoTime();
+                    buildNanos.addAndGet(end - start);
+                    latencyNanos.addAndGet(end - queuedTime);
+                    builtCount.incrementAndGet();
+                    record(end - start, end - queuedTime);
+                }
+                synchronized( this ) {
+                    // Hand it off before it stops counting as building
+                    // so that isQuiescent() never sees it in neither
+                    if( released ) {
+                        state = JobState.Idle;
+                        releases.add(this);
+                    } else {
+                        state = JobState.Built;
+                        done.add(this);
+                    }
+                    building.decrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        public int compareTo( Job other ) {
+            // Lower priority values (nearer zones) are built and applied
+            // first, then first come first served.  The priority is
+            // captured when submitted because it must not change while
+            // the job is in a queue.
+            if( priority != other.priority ) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        @Override
+        public String toString() {
+            return "Job[" + ref + ", " + state + "]";
+        }
+    }
+}
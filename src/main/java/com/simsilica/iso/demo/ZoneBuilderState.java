@@ -0,0 +1,196 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.app.Application;
+import com.simsilica.lemur.Container;
+import com.simsilica.lemur.Label;
+import com.simsilica.lemur.event.BaseAppState;
+import com.simsilica.lemur.props.PropertyPanel;
+
+
+/**
+ *  Owns the ZoneBuilder that builds the paged zones on background
+ *  threads and applies the finished zones once per frame on the
+ *  update thread.  It also keeps the builder's ZoneScheduler up
+ *  to date with the MovementState location, velocity, and facing.
+ */
+public class ZoneBuilderState extends BaseAppState {
+
+    private ZoneBuilder builder;
+    private ZoneScheduler scheduler;
+    private long lastApplyNanos;
+    private MetricsRegistry.Timer applyTimer;
+
+    private Container settings;
+    private Label poolLabel;
+    private Label queueLabel;
+    private Label latencyLabel;
+    private float sinceRefresh;
+
+    /**
+     *  Creates a builder state whose pool sizes itself from the
+     *  available processors and the observed frame time.
+     */
+    public ZoneBuilderState( int maxUpdates ) {
+        this.builder = new ZoneBuilder("ZoneBuilder");
+        builder.setMaxUpdates(maxUpdates);
+        createScheduler();
+    }
+
+    /**
+     *  Creates a builder state with a fixed size pool.
+     */
+    public ZoneBuilderState( int poolSize, int maxUpdates ) {
+        this.builder = new ZoneBuilder("ZoneBuilder", poolSize);
+        builder.setMaxUpdates(maxUpdates);
+        createScheduler();
+        builder.setAdaptive(false);
+    }
+
+    private void createScheduler() {
+        scheduler = new ZoneScheduler();
+        scheduler.setPredictive(Boolean.parseBoolean(System.getProperty("zone.predictive", "true")));
+        builder.setScheduler(scheduler);
+    }
+
+    public ZoneBuilder getBuilder() {
+        return builder;
+    }
+
+    /**
+     *  Returns the scheduler that predicts which zones will be needed
+     *  and holds back the covered ones.  Prediction is turned off with
+     *  -Dzone.predictive=false.  The pagers register their ranges
+     *  with it.
+     */
+    public ZoneScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     *  Returns how long the last frame spent applying built
+     *  zones on the update thread, in nanoseconds.
+     */
+    public long getLastApplyNanos() {
+        return lastApplyNanos;
+    }
+
+    /**
+     *  Returns a settings panel showing the builder's pool size,
+     *  queue depth, and job latency along with its adjustable
+     *  parameters.
+     */
+    public Container getSettings() {
+        if( settings != null ) {
+            return settings;
+        }
+        settings = new Container("glass");
+        poolLabel = settings.addChild(new Label("Threads:", "glass"));
+        queueLabel = settings.addChild(new Label("Queue:", "glass"));
+        latencyLabel = settings.addChild(new Label("Latency:", "glass"));
+
+        PropertyPanel properties = settings.addChild(new PropertyPanel("glass"));
+        properties.addBooleanProperty("Adaptive Pool", builder, "adaptive");
+        properties.addFloatProperty("Target Frame (ms)", builder, "targetFrameMillis", 5, 50, 0.5f);
+        properties.addFloatProperty("Apply Budget (ms)", builder, "applyBudgetMillis", 0.25f, 16, 0.25f);
+        if( scheduler.isPredictive() ) {
+            properties.addFloatProperty("Look Ahead (s)", scheduler, "lookAhead", 0, 10, 0.25f);
+        }
+        refreshSettings();
+        return settings;
+    }
+
+    protected void refreshSettings() {
+        poolLabel.setText("Threads: " + builder.getPoolSize() + " / " + builder.getMaxPoolSize()
+                            + "  (" + builder.getActiveBuilds() + " busy)");
+        queueLabel.setText("Queue: " + builder.getQueueDepth() + "  Parked: " + builder.getParkedCount()
+                            + "  Deferred: " + builder.getDeferredCount()
+                            + "  Ready: " + builder.getReadyCount());
+        latencyLabel.setText("Latency: " + Math.round(builder.getRecentLatencyMillis()) + " ms"
+                            + "  Build: " + Math.round(builder.getRecentBuildMillis()) + " ms");
+    }
+
+    @Override
+    protected void initialize( Application app ) {
+        MetricsState metrics = getState(MetricsState.class);
+        if( metrics != null ) {
+            builder.setMetrics(metrics.getRegistry());
+            applyTimer = metrics.getRegistry().timer("builder.apply");
+        }
+    }
+
+    @Override
+    protected void cleanup( Application app ) {
+        builder.shutdown();
+    }
+
+    @Override
+    public void update( float tpf ) {
+        if( scheduler.isPredictive() ) {
+            MovementState movement = getState(MovementState.class);
+            if( movement != null && movement.getMovementHandler() != null ) {
+                MovementHandler mover = movement.getMovementHandler();
+                scheduler.update(mover.getLocation(), movement.getVelocity(), mover.getFacing());
+            }
+        }
+
+        long start = System.nanoTime();
+        builder.applyUpdates();
+        lastApplyNanos = System.nanoTime() - start;
+        if( applyTimer != null ) {
+            applyTimer.record(lastApplyNanos);
+        }
+        builder.endFrame(tpf);
+
+        if( settings != null ) {
+            sinceRefresh += tpf;
+            if( sinceRefresh > 0.25f ) {
+                sinceRefresh = 0;
+                refreshSettings();
+            }
+        }
+    }
+
+    @Override
+    protected void enable() {
+    }
+
+    @Override
+    protected void disable() {
+    }
+}
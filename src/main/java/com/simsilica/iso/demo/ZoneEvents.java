@@ -0,0 +1,227 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  A low overhead, always available flight recorder for the zone
+ *  lifecycle: enqueue, build start and end, apply, and release, plus
+ *  mesh events from the terrain mesh generator.  Every event carries
+ *  the zone's world location, which unlike a grid cell is unique
+ *  across the differently spaced terrain rings.  Apply and mesh events
+ *  also carry the triangle count and buffer bytes of the zone's
+ *  meshes.  When recording is off every hook is a single volatile
+ *  read.  When it is on, events go into
+ *  fixed ring buffers of primitives so recording never allocates and
+ *  never blocks.  Old events are overwritten once the ring is full.
+ *
+ *  <p>Mesh events are tied to their build through the build id of the
+ *  job running on the recording thread.</p>
+ *
+ *  <p>Writers claim slots with an atomic counter and don't lock, so
+ *  an event being overwritten while the ring is dumped can come out
+ *  torn.  That's an acceptable trade for a diagnostic.</p>
+ */
+public class ZoneEvents {
+
+    public enum Type { Enqueue, BuildStart, BuildEnd, Apply, Release, Cancel, Mesh }
+
+    private static final Type[] TYPES = Type.values();
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+
+    private static volatile boolean enabled = Boolean.getBoolean("zone.events");
+
+    private static final AtomicLong cursor = new AtomicLong();
+    private static final long[] times = new long[CAPACITY];
+    private static final long[] ids = new long[CAPACITY];
+    private static final long[] threads = new long[CAPACITY];
+    private static final byte[] types = new byte[CAPACITY];
+    private static final String[] zoneTypes = new String[CAPACITY];
+    private static final int[] locationX = new int[CAPACITY];
+    private static final int[] locationY = new int[CAPACITY];
+    private static final int[] locationZ = new int[CAPACITY];
+    private static final int[] triangles = new int[CAPACITY];
+    private static final long[] bytes = new long[CAPACITY];
+
+    private static final ThreadLocal<long[]> currentBuild = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[] { -1, 0, 0, 0 };
+            }
+        };
+
+    private ZoneEvents() {
+    }
+
+    /**
+     *  Turns recording on or off.  Also settable at startup with the
+     *  zone.events system property.
+     */
+    public static void setEnabled( boolean b ) {
+        enabled = b;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     *  Returns the number of events recorded since the last clear(),
+     *  including those that have since been overwritten.
+     */
+    public static long getEventCount() {
+        return cursor.get();
+    }
+
+    public static void clear() {
+        cursor.set(0);
+    }
+
+    /**
+     *  Records a lifecycle event for the build with the specified id
+     *  and the zone at the specified world location.
+     */
+    public static void record( Type type, long id, String zoneType, int x, int y, int z ) {
+        record(type, id, zoneType, x, y, z, 0, 0);
+    }
+
+    /**
+     *  Records a lifecycle event for the build with the specified id,
+     *  the zone at the specified world location, and the triangle
+     *  count and buffer bytes of the zone's meshes.
+     */
+    public static void record( Type type, long id, String zoneType, int x, int y, int z,
+                               int tris, long size ) {
+        if( !enabled ) {
+            return;
+        }
+        int slot = (int)(cursor.getAndIncrement() & MASK);
+        times[slot] = System.nanoTime();
+        ids[slot] = id;
+        threads[slot] = Thread.currentThread().getId();
+        types[slot] = (byte)type.ordinal();
+        zoneTypes[slot] = zoneType;
+        locationX[slot] = x;
+        locationY[slot] = y;
+        locationZ[slot] = z;
+        triangles[slot] = tris;
+        bytes[slot] = size;
+    }
+
+    /**
+     *  Sets the build id and zone world location that mesh events
+     *  on this thread belong to, id -1 for none.
+     */
+    public static void setCurrentBuild( long id, int x, int y, int z ) {
+        if( !enabled ) {
+            return;
+        }
+        long[] current = currentBuild.get();
+        current[0] = id;
+        current[1] = x;
+        current[2] = y;
+        current[3] = z;
+    }
+
+    /**
+     *  Records a mesh generated or loaded as part of the current
+     *  build on this thread.
+     */
+    public static void recordMesh( String zoneType, Mesh mesh ) {
+        if( !enabled ) {
+            return;
+        }
+        long[] current = currentBuild.get();
+        record(Type.Mesh, current[0], zoneType, (int)current[1], (int)current[2], (int)current[3],
+               mesh != null ? mesh.getTriangleCount() : 0, getByteSize(mesh));
+    }
+
+    /**
+     *  Returns the total size in bytes of the mesh's buffers.
+     */
+    public static long getByteSize( Mesh mesh ) {
+        long size = 0;
+        if( mesh != null ) {
+            for( VertexBuffer vb : mesh.getBufferList() ) {
+                if( vb.getData() != null ) {
+                    size += (long)vb.getData().limit() * vb.getFormat().getComponentSize();
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     *  Writes the events still in the ring as CSV, oldest first.
+     *  Times are in microseconds from the first event written.
+     */
+    public static void writeCsv( Writer out ) throws IOException {
+        long end = cursor.get();
+        long start = Math.max(0, end - CAPACITY);
+        StringBuilder sb = new StringBuilder();
+        sb.append("timeMicros,event,id,thread,zoneType,x,y,z,triangles,bytes\n");
+        long base = -1;
+        for( long i = start; i < end; i++ ) {
+            int slot = (int)(i & MASK);
+            if( base < 0 ) {
+                base = times[slot];
+            }
+            sb.append((times[slot] - base) / 1000).append(',');
+            sb.append(TYPES[types[slot]]).append(',');
+            sb.append(ids[slot]).append(',');
+            sb.append(threads[slot]).append(',');
+            sb.append(zoneTypes[slot]).append(',');
+            sb.append(locationX[slot]).append(',');
+            sb.append(locationY[slot]).append(',');
+            sb.append(locationZ[slot]).append(',');
+            sb.append(triangles[slot]).append(',');
+            sb.append(bytes[slot]).append('\n');
+            if( sb.length() > 65536 ) {
+                out.write(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        out.write(sb.toString());
+    }
+}
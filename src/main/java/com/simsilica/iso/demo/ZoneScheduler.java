@@ -0,0 +1,301 @@
+/*
+ * $Id$
+ * 
+ * Copyright (c) 2014, Simsilica, LLC
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, 
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR 
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) 
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, 
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.simsilica.iso.demo;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.simsilica.builder.BuilderReference;
+import com.simsilica.pager.Grid;
+import com.simsilica.pager.Zone;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+
+/**
+ *  Scores pending zone builds by where the viewer is heading instead
+ *  of only where it is.  Each frame the owner passes in the viewer's
+ *  land location, velocity, and facing and the scheduler predicts the
+ *  location lookAhead seconds from now.
+ *
+ *  <p>A zone's score is the priority its PagedGrid gave it shifted by
+ *  how many cells closer or farther it will be at the predicted
+ *  location, plus a penalty when it is behind the viewer.  A zone
+ *  whose grid has a registered range is only in the predicted set
+ *  if it is within that many cells of the predicted location.  The
+ *  ZoneBuilder holds back queued zones that leave the predicted set
+ *  until they are either back in it or released.</p>
+ *
+ *  <p>With prediction turned off every zone is in the predicted set
+ *  and keeps its original priority.  Separately, zones that a
+ *  LodRingCoverage reports as interior to finer land are covered and
+ *  the ZoneBuilder defers them whether prediction is on or not.</p>
+ *
+ *  <p>Until the first update() every zone is in the predicted set
+ *  and keeps its original priority.  All methods are expected to be
+ *  called from the update thread.</p>
+ *
+ *  <p>The revision counts changes that could change scores: the
+ *  current or predicted location moving into another bucket of
+ *  bucketSize units, the facing turning into another of 16 sectors, or
+ *  prediction being turned on or off.  The ZoneBuilder only re-scores
+ *  its queue when the revision changes, or every so often anyway for
+ *  changes in coverage.</p>
+ */
+public class ZoneScheduler {
+
+    private final Map<Grid, Integer> ranges = new IdentityHashMap<Grid, Integer>();
+    private final Vector3f location = new Vector3f();
+    private final Vector3f predicted = new Vector3f();
+    private final Vector3f direction = new Vector3f();
+    private final Vector3f temp = new Vector3f();
+    private boolean tracking;
+    private boolean predictive = true;
+    private LodRingCoverage coverage;
+    private float lookAhead = 2;
+    private int behindPenalty = 2;
+    private float margin = 1;
+    private float bucketSize = 16;
+    private int revision;
+    private int lastX;
+    private int lastZ;
+    private int lastPredictedX;
+    private int lastPredictedZ;
+    private int lastSector = -1;
+
+    public ZoneScheduler() {
+    }
+
+    /**
+     *  Sets the paging radius, in cells, of the specified grid.  Zones
+     *  of that grid that will be farther than the radius plus the
+     *  margin from the predicted location are not in the predicted set.
+     *  Zones of grids without a range are always in the set.
+     */
+    public void setRange( Grid grid, int radius ) {
+        ranges.put(grid, radius);
+    }
+
+    /**
+     *  Turns on or off scoring and filtering zones by the predicted
+     *  location.
+     */
+    public void setPredictive( boolean predictive ) {
+        if( this.predictive != predictive ) {
+            revision++;
+        }
+        this.predictive = predictive;
+    }
+
+    public boolean isPredictive() {
+        return predictive;
+    }
+
+    /**
+     *  Sets the LOD ring coverage that decides which coarse zones are
+     *  covered by finer ones and need not be built.
+     */
+    public void setCoverage( LodRingCoverage coverage ) {
+        this.coverage = coverage;
+    }
+
+    public LodRingCoverage getCoverage() {
+        return coverage;
+    }
+
+    /**
+     *  Sets how many seconds ahead the viewer's location is predicted.
+     */
+    public void setLookAhead( float lookAhead ) {
+        this.lookAhead = lookAhead;
+    }
+
+    public float getLookAhead() {
+        return lookAhead;
+    }
+
+    /**
+     *  Sets the priority penalty added to zones that are behind
+     *  the viewer.
+     */
+    public void setBehindPenalty( int behindPenalty ) {
+        this.behindPenalty = behindPenalty;
+    }
+
+    public int getBehindPenalty() {
+        return behindPenalty;
+    }
+
+    /**
+     *  Sets how many cells beyond a grid's range a zone may be from
+     *  the predicted location and still be in the predicted set.
+     */
+    public void setMargin( float margin ) {
+        this.margin = margin;
+    }
+
+    public float getMargin() {
+        return margin;
+    }
+
+    /**
+     *  Updates the viewer's current land location, velocity in units
+     *  per second, and facing.  Only x and z are used.
+     */
+    public void update( Vector3f location, Vector3f velocity, Quaternion facing ) {
+        this.location.set(location.x, 0, location.z);
+        predicted.set(location.x + velocity.x * lookAhead, 0, location.z + velocity.z * lookAhead);
+        facing.mult(Vector3f.UNIT_Z, direction);
+        direction.y = 0;
+        if( direction.lengthSquared() > 0 ) {
+            direction.normalizeLocal();
+        }
+
+        int x = (int)Math.floor(this.location.x / bucketSize);
+        int z = (int)Math.floor(this.location.z / bucketSize);
+        int px = (int)Math.floor(predicted.x / bucketSize);
+        int pz = (int)Math.floor(predicted.z / bucketSize);
+        double angle = Math.atan2(direction.z, direction.x) + Math.PI;
+        int sector = (int)(angle * 8 / Math.PI) & 15;
+        if( !tracking || x != lastX || z != lastZ || px != lastPredictedX || pz != lastPredictedZ
+            || sector != lastSector ) {
+            lastX = x;
+            lastZ = z;
+            lastPredictedX = px;
+            lastPredictedZ = pz;
+            lastSector = sector;
+            revision++;
+        }
+        tracking = true;
+    }
+
+    /**
+     *  Returns a number that changes whenever the scores or the
+     *  predicted set may have changed.
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+    /**
+     *  Sets how far, in world units, the viewer's current or predicted
+     *  location has to move before the revision changes.  Defaults
+     *  to 16, a quarter of a land chunk.
+     */
+    public void setBucketSize( float bucketSize ) {
+        this.bucketSize = bucketSize;
+    }
+
+    public float getBucketSize() {
+        return bucketSize;
+    }
+
+    public Vector3f getPredictedLocation() {
+        return predicted;
+    }
+
+    /**
+     *  Returns the build priority for the specified reference given
+     *  the priority that it reports itself.  Lower values are built
+     *  first.
+     */
+    public int score( BuilderReference ref, int priority ) {
+        if( !predictive || !tracking || !(ref instanceof Zone) ) {
+            return priority;
+        }
+        Zone zone = (Zone)ref;
+        Vector3f center = getCenter(zone);
+        float spacing = getSpacing(zone.getGrid());
+        float now = cellDistance(center, location, spacing);
+        float later = cellDistance(center, predicted, spacing);
+        int result = priority + Math.round(later - now);
+
+        float dx = center.x - location.x;
+        float dz = center.z - location.z;
+        if( dx * direction.x + dz * direction.z < -spacing * 0.5f ) {
+            result += behindPenalty;
+        }
+        return result;
+    }
+
+    /**
+     *  Returns true if the specified reference should still be built
+     *  given where the viewer is predicted to be.
+     */
+    public boolean isPredicted( BuilderReference ref ) {
+        if( !predictive || !tracking || !(ref instanceof Zone) ) {
+            return true;
+        }
+        Zone zone = (Zone)ref;
+        Integer radius = ranges.get(zone.getGrid());
+        if( radius == null ) {
+            return true;
+        }
+        Vector3f center = getCenter(zone);
+        return cellDistance(center, predicted, getSpacing(zone.getGrid())) <= radius + margin;
+    }
+
+    /**
+     *  Returns true if the specified reference is covered by finer
+     *  land and so doesn't need to be built.
+     */
+    public boolean isCovered( BuilderReference ref ) {
+        return coverage != null && coverage.isInterior(ref);
+    }
+
+    private Vector3f getCenter( Zone zone ) {
+        Vector3f spacing = zone.getGrid().getSpacing();
+        zone.getWorldLocation(temp);
+        temp.x += spacing.x * 0.5f;
+        temp.z += spacing.z * 0.5f;
+        return temp;
+    }
+
+    private static float getSpacing( Grid grid ) {
+        Vector3f spacing = grid.getSpacing();
+        return Math.max(spacing.x, spacing.z);
+    }
+
+    /**
+     *  Returns the distance in cells along the farthest of x and z,
+     *  which matches the square region that a PagedGrid pages.
+     */
+    private static float cellDistance( Vector3f center, Vector3f from, float spacing ) {
+        float dx = Math.abs(center.x - from.x);
+        float dz = Math.abs(center.z - from.z);
+        return Math.max(dx, dz) / spacing;
+    }
+}